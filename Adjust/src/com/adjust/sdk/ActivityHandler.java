@@ -9,7 +9,6 @@
 
 package com.adjust.sdk;
 
-import static com.adjust.sdk.Constants.LOGTAG;
 import static com.adjust.sdk.Constants.SESSION_STATE_FILENAME;
 import static com.adjust.sdk.Constants.UNKNOWN;
 
@@ -27,12 +26,15 @@ import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import android.app.Activity;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -40,31 +42,53 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
-public class ActivityHandler extends HandlerThread {
+public class ActivityHandler {
 
     private static long TIMER_INTERVAL;
     private static long SESSION_INTERVAL;
     private static long SUBSESSION_INTERVAL;
+    private static long TRANSITION_GRACE_INTERVAL;
+    private static long FLUSH_DEADLINE;
+    private static long BACKGROUND_DRAIN_INTERVAL;
     private static final String TIME_TRAVEL = "Time travel!";
     private static final String ADJUST_PREFIX = "adjust_";
+    private static final int    EVENT_RING_CAPACITY = 256;
+    private static final long   TEARDOWN_TIMEOUT    = 2 * Constants.ONE_MINUTE; // a stalled request and its timeouts
 
+    // released by the last teardown, a new handler waits for it before reading the state and queue
+    private static CountDownLatch teardownLatch;
+
+    private final  IExecutorProvider        executorProvider;
+    private final  ScheduledExecutorService scheduler;
     private final  SessionHandler           sessionHandler;
     private        IPackageHandler          packageHandler;
     private        OnFinishedListener       onFinishedListener;
     private        ActivityState            activityState;
     private final  Logger                   logger;
-    private static ScheduledExecutorService timer;
+    private final  TimerCycle               timer;
+    private final  EventRing                eventRing;
+    private final  EventRing.Event          drainedEvent;
+    private final  PackageBuilder           drainedEventBuilder;
+    private final  AtomicBoolean            drainScheduled;
     private final  Context                  context;
     private        String                   environment;
     private        String                   defaultTracker;
     private        boolean                  eventBuffering;
     private        boolean                  dropOfflineActivities;
+    private        boolean                  flushOnPause;
+    private        boolean                  backgroundDrain;
+    private        boolean                  batchUpload;
+    private        int                      sendWindow;
+    private        boolean                  compressRequests;
     private        boolean                  enabled;
+    private        boolean                  foreground;
+    private        boolean                  pendingEnd;
+    private        int                      endGeneration;
 
     private String appToken;
     private String macSha1;
@@ -73,16 +97,29 @@ public class ActivityHandler extends HandlerThread {
     private String fbAttributionId;
     private String userAgent;       // changes, should be updated periodically
     private String clientSdk;
+    private volatile GeneralAttributes generalAttributes; // rebuilt when one of the above changes
 
-    public ActivityHandler(Activity activity) {
-        super(LOGTAG, MIN_PRIORITY);
-        setDaemon(true);
-        start();
+    public ActivityHandler(Context context) {
+        executorProvider = AdjustFactory.getExecutorProvider();
         TIMER_INTERVAL = AdjustFactory.getTimerInterval();
         SESSION_INTERVAL = AdjustFactory.getSessionInterval();
         SUBSESSION_INTERVAL = AdjustFactory.getSubsessionInterval();
-        sessionHandler = new SessionHandler(getLooper(), this);
-        context = activity.getApplicationContext();
+        TRANSITION_GRACE_INTERVAL = AdjustFactory.getTransitionGraceInterval();
+        FLUSH_DEADLINE = AdjustFactory.getFlushDeadline();
+        BACKGROUND_DRAIN_INTERVAL = AdjustFactory.getBackgroundDrainInterval();
+        sessionHandler = new SessionHandler(executorProvider.getLooper(IExecutorProvider.ACTIVITY_HANDLER), this);
+        scheduler = executorProvider.getScheduler(IExecutorProvider.ACTIVITY_HANDLER);
+        timer = new TimerCycle(scheduler, new Runnable() {
+            @Override
+            public void run() {
+                timerFired();
+            }
+        }, Constants.ONE_SECOND, TIMER_INTERVAL);
+        eventRing = new EventRing(EVENT_RING_CAPACITY);
+        drainedEvent = new EventRing.Event();
+        drainScheduled = new AtomicBoolean();
+        this.context = context.getApplicationContext();
+        drainedEventBuilder = new PackageBuilder(this.context);
         clientSdk = Constants.CLIENT_SDK;
         enabled = true;
 
@@ -93,16 +130,28 @@ public class ActivityHandler extends HandlerThread {
         sessionHandler.sendMessage(message);
     }
 
-    public ActivityHandler(Activity activity, String appToken,
+    public ActivityHandler(Context context, String appToken,
             String environment, String logLevel, boolean eventBuffering) {
-        super(LOGTAG, MIN_PRIORITY);
-        setDaemon(true);
-        start();
+        executorProvider = AdjustFactory.getExecutorProvider();
         TIMER_INTERVAL = AdjustFactory.getTimerInterval();
         SESSION_INTERVAL = AdjustFactory.getSessionInterval();
         SUBSESSION_INTERVAL = AdjustFactory.getSubsessionInterval();
-        sessionHandler = new SessionHandler(getLooper(), this);
-        context = activity.getApplicationContext();
+        TRANSITION_GRACE_INTERVAL = AdjustFactory.getTransitionGraceInterval();
+        FLUSH_DEADLINE = AdjustFactory.getFlushDeadline();
+        BACKGROUND_DRAIN_INTERVAL = AdjustFactory.getBackgroundDrainInterval();
+        sessionHandler = new SessionHandler(executorProvider.getLooper(IExecutorProvider.ACTIVITY_HANDLER), this);
+        scheduler = executorProvider.getScheduler(IExecutorProvider.ACTIVITY_HANDLER);
+        timer = new TimerCycle(scheduler, new Runnable() {
+            @Override
+            public void run() {
+                timerFired();
+            }
+        }, Constants.ONE_SECOND, TIMER_INTERVAL);
+        eventRing = new EventRing(EVENT_RING_CAPACITY);
+        drainedEvent = new EventRing.Event();
+        drainScheduled = new AtomicBoolean();
+        this.context = context.getApplicationContext();
+        drainedEventBuilder = new PackageBuilder(this.context);
         clientSdk = Constants.CLIENT_SDK;
         enabled = true;
 
@@ -120,6 +169,7 @@ public class ActivityHandler extends HandlerThread {
 
     public void setSdkPrefix(String sdkPrefx) {
         clientSdk = String.format("%s@%s", sdkPrefx, clientSdk);
+        generalAttributes = null; // rebuilt with the new prefix
     }
 
     public void setOnFinishedListener(OnFinishedListener listener) {
@@ -129,27 +179,44 @@ public class ActivityHandler extends HandlerThread {
     public void trackSubsessionStart() {
         Message message = Message.obtain();
         message.arg1 = SessionHandler.START;
+        message.arg2 = eventRing.mark();
         sessionHandler.sendMessage(message);
     }
 
     public void trackSubsessionEnd() {
         Message message = Message.obtain();
         message.arg1 = SessionHandler.END;
+        message.arg2 = eventRing.mark();
         sessionHandler.sendMessage(message);
     }
 
+    // events are written into the event ring without locking,
+    // the session thread drains it in batches
     public void trackEvent(String eventToken, Map<String, String> parameters) {
+        if (eventRing.offer(false, eventToken, 0, parameters)) {
+            scheduleDrain();
+            return;
+        }
+
+        // the ring is full, fall back to a dedicated message
         PackageBuilder builder = new PackageBuilder(context);
         builder.setEventToken(eventToken);
         builder.setCallbackParameters(parameters);
 
         Message message = Message.obtain();
         message.arg1 = SessionHandler.EVENT;
+        message.arg2 = eventRing.mark();
         message.obj = builder;
         sessionHandler.sendMessage(message);
     }
 
     public void trackRevenue(double amountInCents, String eventToken, Map<String, String> parameters) {
+        if (eventRing.offer(true, eventToken, amountInCents, parameters)) {
+            scheduleDrain();
+            return;
+        }
+
+        // the ring is full, fall back to a dedicated message
         PackageBuilder builder = new PackageBuilder(context);
         builder.setAmountInCents(amountInCents);
         builder.setEventToken(eventToken);
@@ -157,10 +224,37 @@ public class ActivityHandler extends HandlerThread {
 
         Message message = Message.obtain();
         message.arg1 = SessionHandler.REVENUE;
+        message.arg2 = eventRing.mark();
         message.obj = builder;
         sessionHandler.sendMessage(message);
     }
 
+    // send the queued packages without an activity, see DrainReceiver
+    public void drainInBackground() {
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.BACKGROUND_DRAIN;
+        sessionHandler.sendMessage(message);
+    }
+
+    // write the state and release all threads, events tracked before are kept
+    public void teardown() {
+        CountDownLatch released = new CountDownLatch(1);
+        setTeardownLatch(released);
+
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.TEARDOWN;
+        message.obj = released;
+        sessionHandler.sendMessage(message);
+    }
+
+    private static synchronized void setTeardownLatch(CountDownLatch released) {
+        teardownLatch = released;
+    }
+
+    private static synchronized CountDownLatch getTeardownLatch() {
+        return teardownLatch;
+    }
+
     public void finishedTrackingActivity(final ResponseData responseData) {
         if (onFinishedListener == null) {
             return;
@@ -201,19 +295,36 @@ public class ActivityHandler extends HandlerThread {
     public void readOpenUrl(Uri url) {
         Message message = Message.obtain();
         message.arg1 = SessionHandler.DEEP_LINK;
+        message.arg2 = eventRing.mark();
         message.obj = url;
         sessionHandler.sendMessage(message);
     }
 
-    private static final class SessionHandler extends Handler {
-        private static final int INIT_BUNDLE = 72630;
-        private static final int INIT_PRESET = 72633;
-        private static final int START       = 72640;
-        private static final int END         = 72650;
-        private static final int EVENT       = 72660;
-        private static final int REVENUE     = 72670;
-        private static final int DEEP_LINK   = 72680;
+    // post a single drain message for any number of events offered in a row
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
 
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.DRAIN;
+        sessionHandler.sendMessage(message);
+    }
+
+    private static final class SessionHandler extends Handler {
+        private static final int INIT_BUNDLE            = 72630;
+        private static final int INIT_PRESET            = 72633;
+        private static final int START                  = 72640;
+        private static final int END                    = 72650;
+        private static final int EVENT                  = 72660;
+        private static final int REVENUE                = 72670;
+        private static final int DEEP_LINK              = 72680;
+        private static final int TIMER                  = 72690;
+        private static final int DRAIN                  = 72700;
+        private static final int END_GRACE              = 72710;
+        private static final int BACKGROUND_DRAIN       = 72720;
+        private static final int BACKGROUND_DRAIN_CHECK = 72730;
+        private static final int TEARDOWN               = 72740;
 
         private final WeakReference<ActivityHandler> sessionHandlerReference;
 
@@ -239,23 +350,49 @@ public class ActivityHandler extends HandlerThread {
                     sessionHandler.initInternal(false);
                     break;
                 case START:
+                    // events tracked before this message keep their order
+                    sessionHandler.drainEventsInternal(message.arg2);
                     sessionHandler.startInternal();
                     break;
                 case END:
+                    sessionHandler.drainEventsInternal(message.arg2);
                     sessionHandler.endInternal();
                     break;
                 case EVENT:
+                    // the events still in the ring were tracked before this one
+                    sessionHandler.drainEventsInternal(message.arg2);
                     PackageBuilder eventBuilder = (PackageBuilder) message.obj;
                     sessionHandler.trackEventInternal(eventBuilder);
                     break;
                 case REVENUE:
+                    sessionHandler.drainEventsInternal(message.arg2);
                     PackageBuilder revenueBuilder = (PackageBuilder) message.obj;
                     sessionHandler.trackRevenueInternal(revenueBuilder);
                     break;
                 case DEEP_LINK:
+                    sessionHandler.drainEventsInternal(message.arg2);
                     Uri url = (Uri) message.obj;
                     sessionHandler.readOpenUrlInternal(url);
                     break;
+                case TIMER:
+                    sessionHandler.timerFiredInternal();
+                    break;
+                case DRAIN:
+                    sessionHandler.drainEventsInternal();
+                    break;
+                case END_GRACE:
+                    sessionHandler.endGraceExpiredInternal(message.arg2);
+                    break;
+                case BACKGROUND_DRAIN:
+                    sessionHandler.backgroundDrainInternal();
+                    break;
+                case BACKGROUND_DRAIN_CHECK:
+                    sessionHandler.backgroundDrainCheckInternal();
+                    break;
+                case TEARDOWN:
+                    CountDownLatch released = (CountDownLatch) message.obj;
+                    sessionHandler.teardownInternal(released);
+                    break;
             }
         }
     }
@@ -272,6 +409,8 @@ public class ActivityHandler extends HandlerThread {
             return;
         }
 
+        waitForTeardown();
+
         String macAddress = Util.getMacAddress(context);
         String macShort = macAddress.replaceAll(":", "");
 
@@ -280,8 +419,12 @@ public class ActivityHandler extends HandlerThread {
         androidId = Util.getAndroidId(context);
         fbAttributionId = Util.getAttributionId(context);
         userAgent = Util.getUserAgent(context);
+        generalAttributes = null;
 
         packageHandler = AdjustFactory.getPackageHandler(this, context, dropOfflineActivities);
+        packageHandler.setBatchUpload(batchUpload);
+        packageHandler.setSendWindow(sendWindow);
+        packageHandler.setCompression(compressRequests);
 
         readActivityState();
     }
@@ -303,8 +446,15 @@ public class ActivityHandler extends HandlerThread {
             return;
         }
 
-        packageHandler.resumeSending();
-        startTimer();
+        // a start right after an end cancels it out, sending was never paused
+        boolean coalesced = cancelPendingEnd();
+        boolean wasForeground = foreground;
+        foreground = true;
+        if (!coalesced) {
+            packageHandler.resumeSending();
+            startTimer();
+            refreshGpsAdid();
+        }
 
         long now = System.currentTimeMillis();
 
@@ -322,6 +472,13 @@ public class ActivityHandler extends HandlerThread {
             return;
         }
 
+        // a second start without an end, the time since the last activity was spent in the foreground
+        if (wasForeground) {
+            updateActivityState(now);
+            writeActivityState();
+            return;
+        }
+
         long lastInterval = now - activityState.lastActivity;
 
         if (lastInterval < 0) {
@@ -355,18 +512,170 @@ public class ActivityHandler extends HandlerThread {
         }
         activityState.sessionLength += lastInterval;
         activityState.lastActivity = now;
-        writeActivityState();
+        if (!coalesced) {
+            writeActivityState();
+        }
     }
 
+    // the session attributes are updated and written right away, so that they
+    // survive the process being killed, pausing is deferred for a grace
+    // interval in case the next activity resumes
     private void endInternal() {
         if (!checkAppTokenNotNull(appToken)) {
             return;
         }
 
-        packageHandler.pauseSending();
-        stopTimer();
         updateActivityState(System.currentTimeMillis());
+        foreground = false;
         writeActivityState();
+
+        if (TRANSITION_GRACE_INTERVAL <= 0) {
+            finishEndInternal();
+            return;
+        }
+
+        pendingEnd = true;
+        endGeneration++;
+
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.END_GRACE;
+        message.arg2 = endGeneration;
+        sessionHandler.sendMessageDelayed(message, TRANSITION_GRACE_INTERVAL);
+    }
+
+    private void endGraceExpiredInternal(int generation) {
+        // ignore grace messages of ends that were already cancelled
+        if (!pendingEnd || generation != endGeneration) {
+            return;
+        }
+
+        pendingEnd = false;
+        finishEndInternal();
+    }
+
+    private void finishEndInternal() {
+        if (flushOnPause
+            && activityState != null
+            && activityState.enabled
+            && packageHandler.hasPendingPackages()) {
+            // deliver the buffered packages before going to sleep
+            packageHandler.flushAndPauseSending(FLUSH_DEADLINE);
+        } else {
+            packageHandler.pauseSending();
+        }
+        stopTimer();
+        backgroundDrainCheckInternal();
+    }
+
+    private void backgroundDrainInternal() {
+        if (!backgroundDrain) {
+            return;
+        }
+        if (foreground || pendingEnd) {
+            logger.verbose("Skipping background drain in the foreground");
+            return;
+        }
+        if (!checkAppTokenNotNull(appToken)) {
+            return;
+        }
+        if (null == activityState || !activityState.enabled) {
+            return;
+        }
+
+        // limit the drains, no matter who sent the broadcast,
+        // on the clock of the alarm so that wall clock changes don't matter
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = SystemClock.elapsedRealtime();
+        long lastDrain = preferences.getLong(DrainReceiver.LAST_DRAIN_KEY, 0);
+        long sinceLastDrain = now - lastDrain; // negative after a reboot
+        if (sinceLastDrain >= 0 && sinceLastDrain < BACKGROUND_DRAIN_INTERVAL) {
+            logger.verbose("Background drain is rate limited");
+            // the alarm could have fired early, keep the chain going
+            if (packageHandler.hasPendingPackages()) {
+                scheduleBackgroundDrain(lastDrain + BACKGROUND_DRAIN_INTERVAL);
+            }
+            return;
+        }
+        preferences.edit().putLong(DrainReceiver.LAST_DRAIN_KEY, now).commit();
+
+        // the flush is time-boxed and pauses sending again when it's done
+        logger.debug("Draining package queue in the background");
+        packageHandler.flushAndPauseSending(FLUSH_DEADLINE);
+
+        // try again later if not everything could be sent
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.BACKGROUND_DRAIN_CHECK;
+        sessionHandler.sendMessageDelayed(message, FLUSH_DEADLINE);
+    }
+
+    private void backgroundDrainCheckInternal() {
+        if (!backgroundDrain || foreground || pendingEnd) {
+            return;
+        }
+        if (!packageHandler.hasPendingPackages()) {
+            return;
+        }
+
+        scheduleBackgroundDrain(SystemClock.elapsedRealtime() + BACKGROUND_DRAIN_INTERVAL);
+    }
+
+    // replaces the alarm that is already set, if any
+    private void scheduleBackgroundDrain(long elapsedRealtime) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, DrainReceiver.class);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, elapsedRealtime, pendingIntent);
+        logger.verbose("Scheduled background drain");
+    }
+
+    private void teardownInternal(CountDownLatch released) {
+        drainEventsInternal();
+        pendingEnd = false;
+        stopTimer();
+
+        if (null != activityState) {
+            writeActivityState();
+        }
+        // packages were only created if the initialization succeeded
+        if (null != packageHandler) {
+            packageHandler.teardown(released); // released once its requests finished
+        } else {
+            released.countDown();
+        }
+
+        // drop the messages that are still queued
+        sessionHandler.sessionHandlerReference.clear();
+        executorProvider.releaseScheduler(IExecutorProvider.ACTIVITY_HANDLER, scheduler);
+        executorProvider.releaseLooper(IExecutorProvider.ACTIVITY_HANDLER, sessionHandler.getLooper());
+        logger.debug("Activity handler released");
+    }
+
+    // the old package handler rewrites its queue until its last request finished
+    private void waitForTeardown() {
+        CountDownLatch released = getTeardownLatch();
+        if (null == released || 0 == released.getCount()) {
+            return;
+        }
+
+        logger.debug("Waiting for the previous activity handler to be released");
+        try {
+            if (!released.await(TEARDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.error("Previous activity handler was not released in time");
+            }
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the previous activity handler");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean cancelPendingEnd() {
+        if (!pendingEnd) {
+            return false;
+        }
+
+        pendingEnd = false;
+        logger.verbose("Coalesced end and start of subsession");
+        return true;
     }
 
     private void trackEventInternal(PackageBuilder eventBuilder) {
@@ -387,15 +696,18 @@ public class ActivityHandler extends HandlerThread {
         activityState.injectEventAttributes(eventBuilder);
         ActivityPackage eventPackage = eventBuilder.buildEventPackage();
         packageHandler.addPackage(eventPackage);
+        wakeTimer();
 
-        if (eventBuffering) {
-            logger.info(String.format("Buffered event %s", eventPackage.getSuffix()));
-        } else {
+        if (!eventBuffering) {
             packageHandler.sendFirstPackage();
+        } else if (logger.isLoggable(Logger.LogLevel.INFO)) {
+            logger.info(String.format("Buffered event %s", eventPackage.getSuffix()));
         }
 
         writeActivityState();
-        logger.debug(String.format(Locale.US, "Event %d", activityState.eventCount));
+        if (logger.isLoggable(Logger.LogLevel.DEBUG)) {
+            logger.debug(String.format(Locale.US, "Event %d", activityState.eventCount));
+        }
     }
 
     private void trackRevenueInternal(PackageBuilder revenueBuilder) {
@@ -417,15 +729,51 @@ public class ActivityHandler extends HandlerThread {
         activityState.injectEventAttributes(revenueBuilder);
         ActivityPackage eventPackage = revenueBuilder.buildRevenuePackage();
         packageHandler.addPackage(eventPackage);
+        wakeTimer();
 
-        if (eventBuffering) {
-            logger.info(String.format("Buffered revenue %s", eventPackage.getSuffix()));
-        } else {
+        if (!eventBuffering) {
             packageHandler.sendFirstPackage();
+        } else if (logger.isLoggable(Logger.LogLevel.INFO)) {
+            logger.info(String.format("Buffered revenue %s", eventPackage.getSuffix()));
         }
 
         writeActivityState();
-        logger.debug(String.format(Locale.US, "Event %d (revenue)", activityState.eventCount));
+        if (logger.isLoggable(Logger.LogLevel.DEBUG)) {
+            logger.debug(String.format(Locale.US, "Event %d (revenue)", activityState.eventCount));
+        }
+    }
+
+    private void drainEventsInternal() {
+        // clear the flag first so that events offered while draining schedule a new drain
+        drainScheduled.set(false);
+        while (eventRing.poll(drainedEvent)) {
+            trackDrainedEventInternal();
+        }
+    }
+
+    private void drainEventsInternal(int mark) {
+        while (eventRing.poll(drainedEvent, mark)) {
+            trackDrainedEventInternal();
+        }
+    }
+
+    // the builder is reused for every drained event, it is not retained by the built package
+    private void trackDrainedEventInternal() {
+        PackageBuilder builder = drainedEventBuilder;
+        builder.reset();
+        builder.setEventToken(drainedEvent.getEventToken());
+        builder.setCallbackParameters(drainedEvent.getParameters());
+        boolean revenue = drainedEvent.isRevenue();
+        if (revenue) {
+            builder.setAmountInCents(drainedEvent.getAmountInCents());
+        }
+        drainedEvent.clear();
+
+        if (revenue) {
+            trackRevenueInternal(builder);
+        } else {
+            trackEventInternal(builder);
+        }
     }
 
     private void readOpenUrlInternal(Uri url) {
@@ -466,6 +814,7 @@ public class ActivityHandler extends HandlerThread {
         injectGeneralAttributes(builder);
         ActivityPackage reattributionPackage = builder.buildReattributionPackage();
         packageHandler.addPackage(reattributionPackage);
+        wakeTimer();
         packageHandler.sendFirstPackage();
 
         logger.debug(String.format("Reattribution %s", adjustDeepLinks.toString()));
@@ -495,8 +844,8 @@ public class ActivityHandler extends HandlerThread {
             return;
         }
 
-        // ignore late updates
-        if (lastInterval > SESSION_INTERVAL) {
+        // ignore late updates, unless the whole interval was spent in the foreground
+        if (lastInterval > SESSION_INTERVAL && !foreground) {
             return;
         }
 
@@ -545,7 +894,9 @@ public class ActivityHandler extends HandlerThread {
 
             try {
                 objectStream.writeObject(activityState);
-                logger.debug(String.format("Wrote activity state: %s", activityState));
+                if (logger.isLoggable(Logger.LogLevel.DEBUG)) {
+                    logger.debug(String.format("Wrote activity state: %s", activityState));
+                }
             } catch (NotSerializableException e) {
                 logger.error("Failed to serialize activity state");
             } finally {
@@ -568,19 +919,32 @@ public class ActivityHandler extends HandlerThread {
         activityState.injectSessionAttributes(builder);
         ActivityPackage sessionPackage = builder.buildSessionPackage();
         packageHandler.addPackage(sessionPackage);
+        wakeTimer();
         packageHandler.sendFirstPackage();
     }
 
     private void injectGeneralAttributes(PackageBuilder builder) {
-        builder.setAppToken(appToken);
-        builder.setMacShortMd5(macShortMd5);
-        builder.setMacSha1(macSha1);
-        builder.setAndroidId(androidId);
-        builder.setFbAttributionId(fbAttributionId);
-        builder.setUserAgent(userAgent);
-        builder.setClientSdk(clientSdk);
-        builder.setEnvironment(environment);
-        builder.setDefaultTracker(defaultTracker);
+        builder.setGeneralAttributes(getGeneralAttributes());
+    }
+
+    private GeneralAttributes getGeneralAttributes() {
+        GeneralAttributes attributes = generalAttributes;
+        if (null == attributes) {
+            attributes = new GeneralAttributes(appToken, macSha1, macShortMd5, androidId,
+                    fbAttributionId, userAgent, clientSdk, environment, defaultTracker,
+                    Util.getGpsAdid(context));
+            generalAttributes = attributes;
+        }
+        return attributes;
+    }
+
+    // the advertising id can be reset by the user, check it once per session start
+    private void refreshGpsAdid() {
+        GeneralAttributes attributes = generalAttributes;
+        if (null == attributes) {
+            return; // fetched when the next package is built
+        }
+        generalAttributes = attributes.withGpsAdid(Util.getGpsAdid(context));
     }
 
     private void injectReferrer(PackageBuilder builder) {
@@ -594,36 +958,47 @@ public class ActivityHandler extends HandlerThread {
     }
 
     private void startTimer() {
-        if (timer != null) {
-            stopTimer();
-        }
-        timer = Executors.newSingleThreadScheduledExecutor();
-        timer.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                timerFired();
-            }
-        }, 1000, TIMER_INTERVAL, TimeUnit.MILLISECONDS);
+        timer.start();
     }
 
     private void stopTimer() {
-        try {
-            timer.shutdown();
-        } catch (NullPointerException e) {
-            logger.error("No timer found");
+        timer.suspend();
+    }
+
+    // wake the timer to deliver newly queued packages
+    private void wakeTimer() {
+        if (foreground) {
+            startTimer();
         }
     }
 
+    // runs on the timer thread, hand over to the session thread
     private void timerFired() {
+        Message message = Message.obtain();
+        message.arg1 = SessionHandler.TIMER;
+        sessionHandler.sendMessage(message);
+    }
+
+    // the session length is updated by the actual session and event activity,
+    // the timer only retries to send pending packages and sleeps when there are none
+    private void timerFiredInternal() {
         if (null != activityState
             && !activityState.enabled) {
             return;
         }
 
-        packageHandler.sendFirstPackage();
+        if (!packageHandler.hasPendingPackages()) {
+            logger.verbose("No pending packages, timer going idle");
+            stopTimer();
+            // the last tick, a crash in the foreground loses at most the time since then
+            if (foreground) {
+                updateActivityState(System.currentTimeMillis());
+                writeActivityState();
+            }
+            return;
+        }
 
-        updateActivityState(System.currentTimeMillis());
-        writeActivityState();
+        packageHandler.sendFirstPackage();
     }
 
     private boolean checkPermissions(Context context) {
@@ -652,6 +1027,11 @@ public class ActivityHandler extends HandlerThread {
         setEventBuffering(bundle.getBoolean("AdjustEventBuffering"));
         logger.setLogLevelString(bundle.getString("AdjustLogLevel"));
         setDropOfflineActivities(bundle.getBoolean("AdjustDropOfflineActivities"));
+        setFlushOnPause(bundle.getBoolean("AdjustFlushOnPause"));
+        setBackgroundDrain(bundle.getBoolean("AdjustBackgroundDrain"));
+        setBatchUpload(bundle.getBoolean("AdjustBatchUpload"));
+        setSendWindow(bundle.getInt("AdjustSendWindow"));
+        setCompressRequests(bundle.getBoolean("AdjustCompressRequests"));
     }
 
     private void setEnvironment(String env) {
@@ -695,6 +1075,41 @@ public class ActivityHandler extends HandlerThread {
         }
     }
 
+    private void setBatchUpload(boolean batch) {
+        batchUpload = batch;
+        if (batchUpload) {
+            logger.info("Queued packages will get sent in batches");
+        }
+    }
+
+    private void setSendWindow(int window) {
+        sendWindow = window;
+        if (sendWindow > 1) {
+            logger.info(String.format(Locale.US, "Up to %d packages will get sent at once", sendWindow));
+        }
+    }
+
+    private void setCompressRequests(boolean compress) {
+        compressRequests = compress;
+        if (compressRequests) {
+            logger.info("Request bodies will get compressed");
+        }
+    }
+
+    public void setFlushOnPause(boolean flush) {
+        flushOnPause = flush;
+        if (flushOnPause) {
+            logger.info("Packages will get flushed on pause");
+        }
+    }
+
+    public void setBackgroundDrain(boolean drain) {
+        backgroundDrain = drain;
+        if (backgroundDrain) {
+            logger.info("Packages will get sent in the background");
+        }
+    }
+
     private Bundle getApplicationBundle() {
         final ApplicationInfo applicationInfo;
         try {
@@ -9,8 +9,14 @@
 
 package com.adjust.sdk;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class ActivityPackage implements Serializable {
     private static final long serialVersionUID = -35935556512024097L;
@@ -19,7 +25,14 @@ public class ActivityPackage implements Serializable {
     private String              path;
     private String              userAgent;
     private String              clientSdk;
-    private Map<String, String> parameters;
+    private Map<String, String>         parameters; // only set in packages of older versions
+    private transient long[]            numbers;    // raw values of the known parameters, indexed by
+    private transient String[]          strings;    // PackageParameter.getSlot, until the body is encoded
+    private transient GeneralAttributes generalAttributes; // shared with other packages
+    private byte[]                      body;       // url encoded parameters, without sent_at
+
+    // sending
+    private int retries; // failed attempts, persisted with the queue
 
     // logs
     private ActivityKind activityKind;
@@ -49,14 +62,169 @@ public class ActivityPackage implements Serializable {
         this.clientSdk = clientSdk;
     }
 
+    public int getRetries() {
+        return retries;
+    }
+
+    public int increaseRetries() {
+        return ++retries;
+    }
+
+    public ActivityPackage() {
+        numbers = new long[PackageParameter.NUMBER_SLOTS];
+        strings = new String[PackageParameter.STRING_SLOTS];
+        Arrays.fill(numbers, -1);
+    }
+
+    // formats the parameters, returns a new map on each call
     public Map<String, String> getParameters() {
-        return parameters;
+        if (null != parameters) {
+            return parameters;
+        }
+        if (null == numbers) {
+            return decodeBody();
+        }
+
+        Map<String, String> formatted = new HashMap<String, String>();
+        for (PackageParameter parameter : PackageParameter.values()) {
+            String value = getFormatted(parameter);
+            if (null != value) {
+                formatted.put(parameter.getKey(), value);
+            }
+        }
+        return formatted;
     }
 
     public void setParameters(Map<String, String> parameters) {
         this.parameters = parameters;
     }
 
+    public GeneralAttributes getGeneralAttributes() {
+        return generalAttributes;
+    }
+
+    public void setGeneralAttributes(GeneralAttributes generalAttributes) {
+        this.generalAttributes = generalAttributes;
+    }
+
+    // the form encoded parameters sorted by key, encoded on the first call
+    public byte[] getBody() throws IOException {
+        if (null != body) {
+            return body;
+        }
+        return getBody(new FormEncoder());
+    }
+
+    // once encoded, the body is the only copy of the parameters that is kept and persisted
+    public byte[] getBody(FormEncoder encoder) throws IOException {
+        if (null != body) {
+            return body;
+        }
+
+        encoder.begin();
+        if (null != parameters) {
+            encoder.writeAll(new TreeMap<String, String>(parameters));
+        } else if (null != numbers) {
+            for (PackageParameter parameter : PackageParameter.BY_KEY) {
+                writeParameter(encoder, parameter);
+            }
+        }
+        body = encoder.finish();
+
+        numbers = null;
+        strings = null;
+        generalAttributes = null;
+        return body;
+    }
+
+    // the parameters of a package that was encoded, read back from its body
+    private Map<String, String> decodeBody() {
+        Map<String, String> decoded = new HashMap<String, String>();
+        if (null == body) {
+            return decoded;
+        }
+
+        try {
+            String form = new String(body, Constants.ENCODING);
+            for (String pair : form.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    String key = URLDecoder.decode(pair.substring(0, equals), Constants.ENCODING);
+                    String value = URLDecoder.decode(pair.substring(equals + 1), Constants.ENCODING);
+                    decoded.put(key, value);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            // utf-8 is always supported
+        }
+        return decoded;
+    }
+
+    // the same values as getFormatted, without formatting the numbers
+    private void writeParameter(FormEncoder encoder, PackageParameter parameter) throws IOException {
+        if (PackageParameter.Type.STRING == parameter.getType()) {
+            String value = getFormatted(parameter);
+            if (null != value) {
+                encoder.write(parameter.getKey(), value);
+            }
+            return;
+        }
+
+        long number = getNumber(parameter);
+        if (number >= 0) {
+            parameter.write(encoder, number);
+        }
+    }
+
+    // the typed values can only be set and read until the body is encoded
+
+    // empty strings are ignored like missing ones
+    public void setString(PackageParameter parameter, String value) {
+        if (null == value || value.length() == 0) {
+            value = null;
+        }
+        strings[parameter.getSlot()] = value;
+    }
+
+    public String getString(PackageParameter parameter) {
+        return strings[parameter.getSlot()];
+    }
+
+    // negative numbers are ignored like missing ones
+    public void setNumber(PackageParameter parameter, long value) {
+        numbers[parameter.getSlot()] = value < 0 ? -1 : value;
+    }
+
+    public long getNumber(PackageParameter parameter) {
+        return numbers[parameter.getSlot()];
+    }
+
+    // the value as it is sent, null if it is missing
+    public String getFormatted(PackageParameter parameter) {
+        if (null != parameters) {
+            return parameters.get(parameter.getKey());
+        }
+        if (null == numbers) {
+            return decodeBody().get(parameter.getKey());
+        }
+        if (PackageParameter.Type.STRING == parameter.getType()) {
+            String value = getString(parameter);
+            if (null == value && null != generalAttributes) {
+                value = generalAttributes.getString(parameter);
+            }
+            if (null == value || value.length() == 0) {
+                return null;
+            }
+            return value;
+        }
+
+        long number = getNumber(parameter);
+        if (number < 0) {
+            return null;
+        }
+        return parameter.format(number);
+    }
+
     public ActivityKind getActivityKind() {
         return activityKind;
     }
@@ -83,7 +251,8 @@ public class ActivityPackage implements Serializable {
         builder.append(String.format("UserAgent: %s\n", userAgent));
         builder.append(String.format("ClientSdk: %s\n", clientSdk));
 
-        if (parameters != null) {
+        Map<String, String> parameters = getParameters();
+        if (!parameters.isEmpty()) {
             builder.append("Parameters:");
             for (Map.Entry<String, String> entity : parameters.entrySet()) {
                 builder.append(String.format("\n\t%-16s %s", entity.getKey(), entity.getValue()));
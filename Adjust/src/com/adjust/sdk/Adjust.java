@@ -14,7 +14,10 @@ import static com.adjust.sdk.Constants.NO_ACTIVITY_HANDLER_FOUND;
 import java.util.Map;
 
 import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
 
 /**
  * The main interface to Adjust.
@@ -24,6 +27,34 @@ import android.net.Uri;
  */
 public class Adjust {
 
+    /**
+     * Tell Adjust that the application was created.
+     * <p/>
+     * This is an alternative to calling onResume and onPause in every activity.
+     * Adjust registers for the lifecycle callbacks of all activities and only
+     * tracks when the app as a whole goes to the foreground or background.
+     * Call this in the onCreate method of your Application class. Requires API level 14,
+     * on older devices keep calling onResume and onPause.
+     *
+     * @param application The application that has just been created.
+     */
+    public static void onCreate(Application application) {
+        logger = AdjustFactory.getLogger();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            logger.error("Lifecycle callbacks require API level 14, call onResume and onPause instead");
+            return;
+        }
+        if (null != lifecycleCallbacks) {
+            return;
+        }
+        if (null == activityHandler) {
+            activityHandler = new ActivityHandler(application);
+        }
+        lifecycleCallbacks = new AdjustLifecycleCallbacks(activityHandler);
+        application.registerActivityLifecycleCallbacks(lifecycleCallbacks);
+        Adjust.application = application;
+    }
+
     /**
      * Tell Adjust that an activity did resume.
      * <p/>
@@ -33,6 +64,9 @@ public class Adjust {
      * @param activity The activity that has just resumed.
      */
     public static void onResume(Activity activity) {
+        if (null != lifecycleCallbacks) {
+            return; // tracked by the lifecycle callbacks
+        }
         if (null == activityHandler) {
             activityHandler = new ActivityHandler(activity);
         }
@@ -47,6 +81,9 @@ public class Adjust {
      * Call this in the onPause method of every activity of your app.
      */
     public static void onPause() {
+        if (null != lifecycleCallbacks) {
+            return; // tracked by the lifecycle callbacks
+        }
         try {
             logger.debug("onPause");
             activityHandler.trackSubsessionEnd();
@@ -149,6 +186,28 @@ public class Adjust {
         return false;
     }
 
+    /**
+     * Release the threads and buffers of the adjust SDK
+     * <p/>
+     * The session state and queued requests are written to disk first.
+     * Adjust starts again with the next call to onResume. If you use onCreate,
+     * call it again to restart.
+     */
+    public static void teardown() {
+        if (null != lifecycleCallbacks) {
+            application.unregisterActivityLifecycleCallbacks(lifecycleCallbacks);
+            lifecycleCallbacks = null;
+            application = null;
+        }
+        try {
+            activityHandler.teardown();
+            activityHandler = null;
+        } catch (NullPointerException e) {
+            if (logger != null)
+                logger.error(NO_ACTIVITY_HANDLER_FOUND);
+        }
+    }
+
     public static void appWillOpenUrl(Uri url) {
         try {
             activityHandler.readOpenUrl(url);
@@ -160,6 +219,15 @@ public class Adjust {
     }
 
 
+    // Called by the DrainReceiver, possibly in a process without any activity.
+    static void drainInBackground(Context context) {
+        if (null == activityHandler) {
+            activityHandler = new ActivityHandler(context);
+        }
+        logger = AdjustFactory.getLogger();
+        activityHandler.drainInBackground();
+    }
+
     // Special appDidLaunch method used by SDK wrappers such as our Adobe Air SDK.
     protected static void appDidLaunch(Activity activity, String appToken, String environment, String logLevel, boolean eventBuffering) {
         activityHandler = new ActivityHandler(activity, appToken, environment, logLevel, eventBuffering);
@@ -174,6 +242,8 @@ public class Adjust {
      * Every activity will get forwarded to this handler to be processed in the background.
      */
     private static ActivityHandler activityHandler;
+    private static AdjustLifecycleCallbacks lifecycleCallbacks;
+    private static Application application;
     private static Logger logger;
 
 }
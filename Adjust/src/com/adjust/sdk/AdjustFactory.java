@@ -5,16 +5,32 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.HttpParams;
 
 import android.content.Context;
+import android.os.Build;
 
 public class AdjustFactory {
     private static IPackageHandler packageHandler = null;
     private static IRequestHandler requestHandler = null;
     private static Logger logger = null;
     private static HttpClient httpClient = null;
+    private static IHttpTransport httpTransport = null;
+    private static IConnectivityMonitor connectivityMonitor = null;
+    private static IExecutorProvider executorProvider = null;
+    private static String baseUrl = null;
+    private static boolean nonBlockingRequests = false;
 
     private static long timerInterval = -1;
     private static long sessionInterval = -1;
     private static long subsessionInterval = -1;
+    private static long transitionGraceInterval = -1;
+    private static long flushDeadline = -1;
+    private static long backgroundDrainInterval = -1;
+    private static long retryBaseInterval = -1;
+    private static long retryMaxInterval = -1;
+    private static long requestTimeoutMin = -1;
+    private static long requestTimeoutMax = -1;
+    private static int batchMaxPackages = -1;
+    private static int batchMaxBytes = -1;
+    private static int compressionThreshold = -1;
 
     public static IPackageHandler getPackageHandler(ActivityHandler activityHandler, Context context, boolean dropOfflineActivities) {
         if (packageHandler == null) {
@@ -25,6 +41,12 @@ public class AdjustFactory {
 
     public static IRequestHandler getRequestHandler(IPackageHandler packageHandler) {
         if (requestHandler == null) {
+            if (nonBlockingRequests && NioRequestHandler.supportsUrl(getBaseUrl())) {
+                return new NioRequestHandler(packageHandler);
+            }
+            if (nonBlockingRequests) {
+                getLogger().error(String.format("Non-blocking requests need an http base url, not %s", getBaseUrl()));
+            }
             return new RequestHandler(packageHandler);
         }
         return requestHandler;
@@ -45,6 +67,38 @@ public class AdjustFactory {
         return httpClient;
     }
 
+    public static IHttpTransport getHttpTransport(int connectionTimeout, int socketTimeout) {
+        if (httpTransport == null) {
+            // HttpURLConnection is unreliable before gingerbread, an injected client is used as well
+            if (httpClient != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+                return new HttpClientTransport(connectionTimeout, socketTimeout);
+            }
+            return new UrlConnectionTransport(connectionTimeout, socketTimeout);
+        }
+        return httpTransport;
+    }
+
+    public static IConnectivityMonitor getConnectivityMonitor(Context context) {
+        if (connectivityMonitor == null) {
+            return new ConnectivityMonitor(context);
+        }
+        return connectivityMonitor;
+    }
+
+    public static IExecutorProvider getExecutorProvider() {
+        if (executorProvider == null) {
+            return new ExecutorProvider();
+        }
+        return executorProvider;
+    }
+
+    public static String getBaseUrl() {
+        if (baseUrl == null) {
+            return Constants.BASE_URL;
+        }
+        return baseUrl;
+    }
+
     public static long getTimerInterval() {
         if (timerInterval == -1) {
             return Constants.ONE_MINUTE;
@@ -66,6 +120,76 @@ public class AdjustFactory {
         return subsessionInterval;
     }
 
+    public static long getTransitionGraceInterval() {
+        if (transitionGraceInterval == -1) {
+            return Constants.HALF_SECOND;
+        }
+        return transitionGraceInterval;
+    }
+
+    public static long getFlushDeadline() {
+        if (flushDeadline == -1) {
+            return Constants.TEN_SECONDS;
+        }
+        return flushDeadline;
+    }
+
+    public static long getBackgroundDrainInterval() {
+        if (backgroundDrainInterval == -1) {
+            return Constants.THIRTY_MINUTES;
+        }
+        return backgroundDrainInterval;
+    }
+
+    public static long getRetryBaseInterval() {
+        if (retryBaseInterval == -1) {
+            return Constants.ONE_SECOND;
+        }
+        return retryBaseInterval;
+    }
+
+    public static long getRetryMaxInterval() {
+        if (retryMaxInterval == -1) {
+            return Constants.TEN_MINUTES;
+        }
+        return retryMaxInterval;
+    }
+
+    public static long getRequestTimeoutMin() {
+        if (requestTimeoutMin == -1) {
+            return Constants.TEN_SECONDS;
+        }
+        return requestTimeoutMin;
+    }
+
+    public static long getRequestTimeoutMax() {
+        if (requestTimeoutMax == -1) {
+            return Constants.ONE_MINUTE;
+        }
+        return requestTimeoutMax;
+    }
+
+    public static int getBatchMaxPackages() {
+        if (batchMaxPackages == -1) {
+            return Constants.BATCH_MAX_PACKAGES;
+        }
+        return batchMaxPackages;
+    }
+
+    public static int getBatchMaxBytes() {
+        if (batchMaxBytes == -1) {
+            return Constants.BATCH_MAX_BYTES;
+        }
+        return batchMaxBytes;
+    }
+
+    public static int getCompressionThreshold() {
+        if (compressionThreshold == -1) {
+            return Constants.COMPRESSION_THRESHOLD;
+        }
+        return compressionThreshold;
+    }
+
     public static void setPackageHandler(IPackageHandler packageHandler) {
         AdjustFactory.packageHandler = packageHandler;
     }
@@ -82,6 +206,30 @@ public class AdjustFactory {
         AdjustFactory.httpClient = httpClient;
     }
 
+    public static void setHttpTransport(IHttpTransport httpTransport) {
+        AdjustFactory.httpTransport = httpTransport;
+    }
+
+    public static void setConnectivityMonitor(IConnectivityMonitor connectivityMonitor) {
+        AdjustFactory.connectivityMonitor = connectivityMonitor;
+    }
+
+    public static void setExecutorProvider(IExecutorProvider executorProvider) {
+        AdjustFactory.executorProvider = executorProvider;
+    }
+
+    public static void setBaseUrl(String baseUrl) {
+        AdjustFactory.baseUrl = baseUrl;
+    }
+
+    // send on one selector thread, for plain http base urls only, so set the base url first
+    public static void setNonBlockingRequests(boolean nonBlockingRequests) {
+        if (nonBlockingRequests && !NioRequestHandler.supportsUrl(getBaseUrl())) {
+            throw new IllegalStateException(String.format("Non-blocking requests need an http base url, not %s", getBaseUrl()));
+        }
+        AdjustFactory.nonBlockingRequests = nonBlockingRequests;
+    }
+
     public static void setTimerInterval(long timerInterval) {
         AdjustFactory.timerInterval = timerInterval;
     }
@@ -94,4 +242,44 @@ public class AdjustFactory {
         AdjustFactory.subsessionInterval = subsessionInterval;
     }
 
+    public static void setTransitionGraceInterval(long transitionGraceInterval) {
+        AdjustFactory.transitionGraceInterval = transitionGraceInterval;
+    }
+
+    public static void setFlushDeadline(long flushDeadline) {
+        AdjustFactory.flushDeadline = flushDeadline;
+    }
+
+    public static void setBackgroundDrainInterval(long backgroundDrainInterval) {
+        AdjustFactory.backgroundDrainInterval = backgroundDrainInterval;
+    }
+
+    public static void setRetryBaseInterval(long retryBaseInterval) {
+        AdjustFactory.retryBaseInterval = retryBaseInterval;
+    }
+
+    public static void setRetryMaxInterval(long retryMaxInterval) {
+        AdjustFactory.retryMaxInterval = retryMaxInterval;
+    }
+
+    public static void setRequestTimeoutMin(long requestTimeoutMin) {
+        AdjustFactory.requestTimeoutMin = requestTimeoutMin;
+    }
+
+    public static void setRequestTimeoutMax(long requestTimeoutMax) {
+        AdjustFactory.requestTimeoutMax = requestTimeoutMax;
+    }
+
+    public static void setBatchMaxPackages(int batchMaxPackages) {
+        AdjustFactory.batchMaxPackages = batchMaxPackages;
+    }
+
+    public static void setBatchMaxBytes(int batchMaxBytes) {
+        AdjustFactory.batchMaxBytes = batchMaxBytes;
+    }
+
+    public static void setCompressionThreshold(int compressionThreshold) {
+        AdjustFactory.compressionThreshold = compressionThreshold;
+    }
+
 }
@@ -0,0 +1,74 @@
+package com.adjust.sdk;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/*
+ * Tracks the foreground state of the whole process
+ *
+ * Counts the started activities, so that only the first start and the last
+ * stop reach the activity handler. A stop caused by a configuration change
+ * is not an end, the recreated activity starts again right away.
+ * Requires API level 14.
+ */
+public class AdjustLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+    private final ActivityHandler activityHandler;
+    private       int             startedActivities;
+    private       boolean         changingConfigurations;
+
+    public AdjustLifecycleCallbacks(ActivityHandler activityHandler) {
+        this.activityHandler = activityHandler;
+    }
+
+    // all callbacks are called on the main thread
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (startedActivities++ > 0) {
+            return;
+        }
+
+        if (changingConfigurations) {
+            changingConfigurations = false;
+            return;
+        }
+
+        activityHandler.trackSubsessionStart();
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        // an activity started before the callbacks were registered stops without a start
+        startedActivities = Math.max(startedActivities - 1, 0);
+        if (startedActivities > 0) {
+            return;
+        }
+
+        if (activity.isChangingConfigurations()) {
+            changingConfigurations = true;
+            return;
+        }
+
+        activityHandler.trackSubsessionEnd();
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
@@ -0,0 +1,77 @@
+package com.adjust.sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+// listens to the connectivity broadcasts, needs the ACCESS_NETWORK_STATE permission
+public class ConnectivityMonitor extends BroadcastReceiver implements IConnectivityMonitor {
+    private final Context    context;
+    private final Logger     logger;
+    private IPackageHandler  packageHandler;
+    private boolean          registered;
+
+    public ConnectivityMonitor(Context context) {
+        this.context = context;
+        this.logger = AdjustFactory.getLogger();
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (!canReadNetworkState()) {
+            return true;
+        }
+
+        ConnectivityManager connectivityManager =
+            (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (null == connectivityManager) {
+            return true;
+        }
+
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return null != networkInfo && networkInfo.isConnected();
+    }
+
+    @Override
+    public void start(IPackageHandler packageHandler) {
+        if (registered) {
+            return;
+        }
+        if (!canReadNetworkState()) {
+            logger.verbose("Missing permission ACCESS_NETWORK_STATE, connectivity is not monitored");
+            return;
+        }
+
+        this.packageHandler = packageHandler;
+        context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        registered = true;
+    }
+
+    @Override
+    public void stop() {
+        if (!registered) {
+            return;
+        }
+
+        context.unregisterReceiver(this);
+        registered = false;
+        packageHandler = null;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        IPackageHandler packageHandler = this.packageHandler;
+        if (null != packageHandler) {
+            packageHandler.setConnected(isConnected());
+        }
+    }
+
+    private boolean canReadNetworkState() {
+        int result = context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE);
+        return result == PackageManager.PERMISSION_GRANTED;
+    }
+}
@@ -15,10 +15,21 @@ package com.adjust.sdk;
  */
 public interface Constants {
     int ONE_SECOND     = 1000;
+    int HALF_SECOND    = ONE_SECOND / 2;
+    int TEN_SECONDS    = 10 * ONE_SECOND;
     int ONE_MINUTE     = 60 * ONE_SECOND;
+    int TEN_MINUTES    = 10 * ONE_MINUTE;
     int THIRTY_MINUTES = 30 * ONE_MINUTE;
 
+    int BATCH_MAX_PACKAGES = 100;
+    int BATCH_MAX_BYTES    = 64 * 1024;
+
+    int COMPRESSION_THRESHOLD = 256;
+
+    int MAX_RESPONSE_BYTES = 32 * 1024;
+
     String BASE_URL   = "https://app.adjust.io";
+    String BATCH_PATH = "/batch";
     String CLIENT_SDK = "android3.3.0";
     String LOGTAG     = "Adjust";
 
@@ -0,0 +1,108 @@
+package com.adjust.sdk;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*
+ * Thread-safe formatter for the yyyy-MM-dd'T'HH:mm:ss'Z'Z format
+ *
+ * The text of the last formatted second is cached, formatting the same
+ * second again returns the same string. The prefix up to the minute and the
+ * zone offset are cached per minute, so a new second only appends the
+ * seconds. The caches are immutable entries behind volatile references.
+ */
+public class DateFormatter {
+    private volatile SecondEntry lastSecond;
+    private volatile MinuteEntry lastMinute;
+
+    public String format(long date) {
+        long second = floorDiv(date, 1000);
+
+        SecondEntry secondEntry = lastSecond;
+        if (null != secondEntry && secondEntry.second == second) {
+            return secondEntry.text;
+        }
+
+        long minute = floorDiv(second, 60);
+        MinuteEntry minuteEntry = lastMinute;
+        if (null == minuteEntry || minuteEntry.minute != minute) {
+            minuteEntry = new MinuteEntry(minute);
+            lastMinute = minuteEntry;
+        }
+
+        int seconds = (int) (second - minute * 60);
+        String text = minuteEntry.format(seconds);
+        lastSecond = new SecondEntry(second, text);
+        return text;
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        if (dividend % divisor < 0) {
+            quotient--;
+        }
+        return quotient;
+    }
+
+    private static final class SecondEntry {
+        private final long   second;
+        private final String text;
+
+        private SecondEntry(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static final class MinuteEntry {
+        private final long   minute;
+        private final char[] prefix; // yyyy-MM-dd'T'HH:mm: followed by ss'Z'Z
+
+        private MinuteEntry(long minute) {
+            this.minute = minute;
+
+            Calendar calendar = new GregorianCalendar(TimeZone.getDefault(), Locale.US);
+            calendar.setTimeInMillis(minute * 60 * 1000);
+
+            StringBuilder builder = new StringBuilder(24);
+            appendPadded(builder, calendar.get(Calendar.YEAR), 4);
+            builder.append('-');
+            appendPadded(builder, calendar.get(Calendar.MONTH) + 1, 2);
+            builder.append('-');
+            appendPadded(builder, calendar.get(Calendar.DAY_OF_MONTH), 2);
+            builder.append('T');
+            appendPadded(builder, calendar.get(Calendar.HOUR_OF_DAY), 2);
+            builder.append(':');
+            appendPadded(builder, calendar.get(Calendar.MINUTE), 2);
+            builder.append(':');
+            builder.append("00Z"); // seconds are filled in by format
+
+            int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+            builder.append(offsetMinutes < 0 ? '-' : '+');
+            offsetMinutes = Math.abs(offsetMinutes);
+            appendPadded(builder, offsetMinutes / 60, 2);
+            appendPadded(builder, offsetMinutes % 60, 2);
+
+            prefix = new char[builder.length()];
+            builder.getChars(0, prefix.length, prefix, 0);
+        }
+
+        private String format(int seconds) {
+            int secondsIndex = prefix.length - 8; // ss'Z'+HHmm
+            char[] text = prefix.clone();
+            text[secondsIndex] = (char) ('0' + seconds / 10);
+            text[secondsIndex + 1] = (char) ('0' + seconds % 10);
+            return new String(text);
+        }
+
+        private static void appendPadded(StringBuilder builder, int value, int digits) {
+            String string = Integer.toString(value);
+            for (int i = string.length(); i < digits; i++) {
+                builder.append('0');
+            }
+            builder.append(string);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.adjust.sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+// sends the queued packages while the app is in the background,
+// the alarm is set by the activity handler when the app is paused
+public class DrainReceiver extends BroadcastReceiver {
+
+    // elapsed realtime of the last drain
+    protected static final String LAST_DRAIN_KEY = "AdjustLastBackgroundDrain";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Adjust.drainInBackground(context);
+    }
+}
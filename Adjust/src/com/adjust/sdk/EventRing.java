@@ -0,0 +1,124 @@
+package com.adjust.sdk;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded multi-producer single-consumer ring of pre-allocated event slots
+ *
+ * App threads claim a slot with a compare-and-set on the tail and publish it
+ * through its sequence number, so offering an event takes no lock and
+ * allocates nothing. The session thread is the only consumer.
+ */
+public class EventRing {
+    private final int             mask;
+    private final Event[]         slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong      tail;
+    private       long            head; // only touched by the consumer
+
+    public EventRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        this.mask = capacity - 1;
+        this.slots = new Event[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.tail = new AtomicLong();
+
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    // called from any thread, returns false when the ring is full
+    public boolean offer(boolean revenue, String eventToken, double amountInCents, Map<String, String> parameters) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Event slot = slots[index];
+                    slot.revenue = revenue;
+                    slot.eventToken = eventToken;
+                    slot.amountInCents = amountInCents;
+                    slot.parameters = parameters;
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // the consumer has not freed this slot yet
+            } else {
+                position = tail.get(); // another producer claimed it
+            }
+        }
+    }
+
+    // marks the events claimed so far, see poll(Event, int)
+    // truncated to an int to fit into a message argument
+    public int mark() {
+        return (int) tail.get();
+    }
+
+    // consumer only, moves the oldest published event into the given event
+    public boolean poll(Event event) {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return false; // empty or not yet published
+        }
+
+        Event slot = slots[index];
+        event.revenue = slot.revenue;
+        event.eventToken = slot.eventToken;
+        event.amountInCents = slot.amountInCents;
+        event.parameters = slot.parameters;
+        slot.eventToken = null;
+        slot.parameters = null;
+
+        sequences.set(index, head + slots.length); // free the slot for the next lap
+        head++;
+        return true;
+    }
+
+    // consumer only, like poll(Event) but only for events claimed before the mark
+    public boolean poll(Event event, int mark) {
+        if ((int) head - mark >= 0) {
+            return false;
+        }
+        return poll(event);
+    }
+
+    public static final class Event {
+        private boolean             revenue;
+        private String              eventToken;
+        private double              amountInCents;
+        private Map<String, String> parameters;
+
+        public boolean isRevenue() {
+            return revenue;
+        }
+
+        public String getEventToken() {
+            return eventToken;
+        }
+
+        public double getAmountInCents() {
+            return amountInCents;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        public void clear() {
+            eventToken = null;
+            parameters = null;
+        }
+    }
+}
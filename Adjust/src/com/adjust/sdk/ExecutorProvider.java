@@ -0,0 +1,43 @@
+package com.adjust.sdk;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+// default threads: one low priority daemon thread per component
+public class ExecutorProvider implements IExecutorProvider {
+
+    @Override
+    public Looper getLooper(String component) {
+        HandlerThread thread = new HandlerThread(Constants.LOGTAG, Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+        return thread.getLooper();
+    }
+
+    @Override
+    public ScheduledExecutorService getScheduler(String component) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, Constants.LOGTAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void releaseLooper(String component, Looper looper) {
+        looper.quit();
+    }
+
+    @Override
+    public void releaseScheduler(String component, ScheduledExecutorService scheduler) {
+        scheduler.shutdown();
+    }
+}
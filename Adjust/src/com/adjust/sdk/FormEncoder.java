@@ -0,0 +1,186 @@
+package com.adjust.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/*
+ * Writes form encoded parameters straight into a stream
+ *
+ * The output is the same as URLEncoder with UTF-8 would produce, but
+ * characters are encoded one at a time into a scratch buffer that is
+ * flushed to the stream when it fills up, so no strings are built per
+ * parameter and the body is never copied as a whole. Numbers are written
+ * as digits without formatting them into a string first.
+ * Not thread safe, the scratch buffer is reused for every form.
+ */
+public class FormEncoder {
+    private static final int    BUFFER_SIZE   = 256;
+    private static final int    MAX_CODEPOINT = 12; // four bytes, each percent encoded
+    private static final int    MAX_DIGITS    = 19; // of a long
+    private static final byte[] HEX           = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private final byte[] buffer;
+    private final Form   form; // reused for forms that are returned as arrays
+    private OutputStream output;
+    private int          position;
+    private boolean      separator;
+
+    public FormEncoder() {
+        buffer = new byte[BUFFER_SIZE];
+        form = new Form();
+    }
+
+    // start a form in the reused buffer, see finish
+    public void begin() {
+        form.reset();
+        begin(form, false);
+    }
+
+    // the form started with begin, in an array of its exact size
+    public byte[] finish() throws IOException {
+        end();
+        return form.toByteArray();
+    }
+
+    // the content followed by one more parameter, in a single array of the exact size
+    public byte[] append(byte[] content, String name, String value) throws IOException {
+        form.reset();
+        begin(form, content.length > 0);
+        write(name, value);
+        end();
+
+        byte[] appended = new byte[content.length + form.size()];
+        System.arraycopy(content, 0, appended, 0, content.length);
+        form.copyTo(appended, content.length);
+        return appended;
+    }
+
+    // start a form, separator if it continues parameters already in the output
+    public void begin(OutputStream output, boolean separator) {
+        this.output = output;
+        this.position = 0;
+        this.separator = separator;
+    }
+
+    public void write(String name, String value) throws IOException {
+        if (separator) {
+            writeByte('&');
+        }
+        separator = true;
+
+        writeEncoded(name);
+        writeByte('=');
+        writeEncoded(value);
+    }
+
+    // a number that is not negative, its digits need no encoding
+    public void write(String name, long value) throws IOException {
+        if (separator) {
+            writeByte('&');
+        }
+        separator = true;
+
+        writeEncoded(name);
+        writeByte('=');
+        writeDigits(value);
+    }
+
+    public void writeAll(Map<String, String> parameters) throws IOException {
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // flush what is left in the scratch buffer
+    public void end() throws IOException {
+        flush();
+        output = null;
+    }
+
+    private void writeEncoded(String string) throws IOException {
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            if (position > BUFFER_SIZE - MAX_CODEPOINT) {
+                flush();
+            }
+
+            char c = string.charAt(i);
+            if (isUnreserved(c)) {
+                buffer[position++] = (byte) c;
+            } else if (c == ' ') {
+                buffer[position++] = '+';
+            } else if (c < 0x80) {
+                writePercent(c);
+            } else if (c < 0x800) {
+                writePercent(0xC0 | (c >> 6));
+                writePercent(0x80 | (c & 0x3F));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                writePercent(0xE0 | (c >> 12));
+                writePercent(0x80 | ((c >> 6) & 0x3F));
+                writePercent(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                writePercent(0xF0 | (codePoint >> 18));
+                writePercent(0x80 | ((codePoint >> 12) & 0x3F));
+                writePercent(0x80 | ((codePoint >> 6) & 0x3F));
+                writePercent(0x80 | (codePoint & 0x3F));
+            } else {
+                writePercent('?'); // unpaired surrogate, replaced like String.getBytes does
+            }
+        }
+    }
+
+    private void writeDigits(long value) throws IOException {
+        if (position > BUFFER_SIZE - MAX_DIGITS) {
+            flush();
+        }
+
+        // least significant digit first, then reversed in place
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    private void writePercent(int b) {
+        buffer[position++] = '%';
+        buffer[position++] = HEX[(b >> 4) & 0xF];
+        buffer[position++] = HEX[b & 0xF];
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        if (position > 0) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    // exposes its buffer to copy it without an intermediate array
+    private static final class Form extends ByteArrayOutputStream {
+        private void copyTo(byte[] destination, int offset) {
+            System.arraycopy(buf, 0, destination, offset, count);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.adjust.sdk;
+
+/*
+ * Immutable snapshot of the attributes that are the same for all packages
+ *
+ * The activity handler builds a new snapshot only when one of them changes,
+ * packages keep a reference to it instead of copying the values.
+ */
+public final class GeneralAttributes {
+    private final String appToken;
+    private final String macSha1;
+    private final String macShortMd5;
+    private final String androidId;
+    private final String fbAttributionId;
+    private final String userAgent;
+    private final String clientSdk;
+    private final String environment;
+    private final String defaultTracker;
+    private final String gpsAdid;
+
+    public GeneralAttributes(String appToken, String macSha1, String macShortMd5,
+            String androidId, String fbAttributionId, String userAgent, String clientSdk,
+            String environment, String defaultTracker, String gpsAdid) {
+        this.appToken = appToken;
+        this.macSha1 = macSha1;
+        this.macShortMd5 = macShortMd5;
+        this.androidId = androidId;
+        this.fbAttributionId = fbAttributionId;
+        this.userAgent = userAgent;
+        this.clientSdk = clientSdk;
+        this.environment = environment;
+        this.defaultTracker = defaultTracker;
+        this.gpsAdid = gpsAdid;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public String getClientSdk() {
+        return clientSdk;
+    }
+
+    public String getDefaultTracker() {
+        return defaultTracker;
+    }
+
+    public String getGpsAdid() {
+        return gpsAdid;
+    }
+
+    // copy with a new advertising id, or this snapshot if it did not change
+    public GeneralAttributes withGpsAdid(String gpsAdid) {
+        if (equals(this.gpsAdid, gpsAdid)) {
+            return this;
+        }
+        return new GeneralAttributes(appToken, macSha1, macShortMd5, androidId, fbAttributionId,
+                userAgent, clientSdk, environment, defaultTracker, gpsAdid);
+    }
+
+    // the value of a general parameter, null for all other parameters
+    public String getString(PackageParameter parameter) {
+        switch (parameter) {
+        case APP_TOKEN:   return appToken;
+        case MAC_SHA1:    return macSha1;
+        case MAC_MD5:     return macShortMd5;
+        case ANDROID_ID:  return androidId;
+        case FB_ID:       return fbAttributionId;
+        case ENVIRONMENT: return environment;
+        case GPS_ADID:    return gpsAdid;
+        default:          return null;
+        }
+    }
+
+    private static boolean equals(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+}
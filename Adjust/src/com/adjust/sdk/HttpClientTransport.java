@@ -0,0 +1,90 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+// transport on the apache http client, used before gingerbread
+public class HttpClientTransport implements IHttpTransport {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final HttpClient httpClient;
+    private final byte[]     buffer;
+    private int              connectionTimeout;
+    private int              socketTimeout;
+
+    public HttpClientTransport(int connectionTimeout, int socketTimeout) {
+        HttpParams httpParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
+        httpClient = AdjustFactory.getHttpClient(httpParams);
+        buffer = new byte[BUFFER_SIZE];
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public HttpResult post(String url, Map<String, String> headers, String contentType, byte[] body) throws IOException {
+        HttpPost request = new HttpPost(url);
+        // the request params take precedence over the ones of the client
+        HttpConnectionParams.setConnectionTimeout(request.getParams(), connectionTimeout);
+        HttpConnectionParams.setSoTimeout(request.getParams(), socketTimeout);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType(contentType);
+        request.setEntity(entity);
+
+        HttpResponse response = httpClient.execute(request);
+        int statusCode = response.getStatusLine().getStatusCode();
+        return readBody(statusCode, request, response);
+    }
+
+    @Override
+    public void setTimeouts(int connectionTimeout, int socketTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public void shutdown() {
+        ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+        if (null != connectionManager) {
+            connectionManager.shutdown();
+        }
+    }
+
+    private HttpResult readBody(int statusCode, HttpPost request, HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (null == entity) {
+            return new HttpResult(statusCode, new byte[0], false);
+        }
+
+        try {
+            InputStream in = entity.getContent();
+            HttpResult result = HttpResult.read(statusCode, in, buffer);
+            if (result.isTruncated()) {
+                // releases the connection without reading the rest
+                request.abort();
+            } else {
+                entity.consumeContent();
+            }
+            return result;
+        } catch (Exception e) {
+            request.abort();
+            return new HttpResult(statusCode, null, false);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// status code and body of a finished request
+public class HttpResult {
+    private final int     statusCode;
+    private final byte[]  body;
+    private final boolean truncated;
+
+    public HttpResult(int statusCode, byte[] body, boolean truncated) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.truncated = truncated;
+    }
+
+    // reads at most MAX_RESPONSE_BYTES of the body, a larger one is cut off
+    public static HttpResult read(int statusCode, InputStream in, byte[] buffer) throws IOException {
+        if (null == in) {
+            return new HttpResult(statusCode, new byte[0], false);
+        }
+
+        byte[] body = buffer;
+        int length = 0;
+        while (true) {
+            if (length == body.length) {
+                if (length == Constants.MAX_RESPONSE_BYTES) {
+                    return new HttpResult(statusCode, body, in.read() >= 0);
+                }
+                byte[] larger = new byte[Math.min(length * 2, Constants.MAX_RESPONSE_BYTES)];
+                System.arraycopy(body, 0, larger, 0, length);
+                body = larger;
+            }
+
+            int count = in.read(body, length, body.length - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+
+        byte[] result = new byte[length];
+        System.arraycopy(body, 0, result, 0, length);
+        return new HttpResult(statusCode, result, false);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // raw bytes, null if it could not be read
+    public byte[] getBody() {
+        return body;
+    }
+
+    // whether the body was longer than MAX_RESPONSE_BYTES and the rest was not read
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
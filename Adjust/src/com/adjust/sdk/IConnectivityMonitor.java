@@ -0,0 +1,16 @@
+package com.adjust.sdk;
+
+/*
+ * Tells the package handler when the device goes offline and back online
+ *
+ * start is called on the thread of the package handler, changes are
+ * reported through IPackageHandler.setConnected from any thread.
+ */
+public interface IConnectivityMonitor {
+    // true if a network is available or its state can't be read
+    public boolean isConnected();
+
+    public void start(IPackageHandler packageHandler);
+
+    public void stop();
+}
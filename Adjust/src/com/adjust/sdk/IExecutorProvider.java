@@ -0,0 +1,34 @@
+package com.adjust.sdk;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import android.os.Looper;
+
+/*
+ * Supplies the threads the SDK runs on
+ *
+ * Every component serializes its work on the looper it gets for its name.
+ * Host apps that manage their own threads can inject an implementation via
+ * AdjustFactory.setExecutorProvider, e.g. to hand out the looper of a
+ * HandlerThread they own or to share one looper among all components.
+ * A handler created right after a teardown blocks its looper until the
+ * old package handler got its last response. On a looper shared with the
+ * old package handler that response cannot arrive, so the wait only ends
+ * at its timeout.
+ */
+public interface IExecutorProvider {
+    public static final String ACTIVITY_HANDLER = "ActivityHandler";
+    public static final String PACKAGE_HANDLER  = "PackageHandler";
+    public static final String REQUEST_HANDLER  = "RequestHandler";
+
+    // looper on which the given component processes its messages
+    public Looper getLooper(String component);
+
+    // scheduler for the periodic work of the given component
+    public ScheduledExecutorService getScheduler(String component);
+
+    // called from the looper thread once the component is torn down
+    public void releaseLooper(String component, Looper looper);
+
+    public void releaseScheduler(String component, ScheduledExecutorService scheduler);
+}
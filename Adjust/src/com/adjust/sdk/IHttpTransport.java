@@ -0,0 +1,21 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.util.Map;
+
+/*
+ * Sends the requests of one request handler
+ *
+ * Each request handler creates its own transport on its thread, so an
+ * implementation does not need to be thread safe.
+ */
+public interface IHttpTransport {
+    // post the body and read the whole response, network errors are thrown
+    public HttpResult post(String url, Map<String, String> headers, String contentType, byte[] body) throws IOException;
+
+    // used by the requests that follow
+    public void setTimeouts(int connectionTimeout, int socketTimeout);
+
+    // close the connections that are kept alive
+    public void shutdown();
+}
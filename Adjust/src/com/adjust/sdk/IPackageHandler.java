@@ -1,21 +1,40 @@
 package com.adjust.sdk;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 public interface IPackageHandler {
     public void addPackage(ActivityPackage pack);
 
     public void sendFirstPackage();
 
-    public void sendNextPackage();
+    public void sendNextPackage(ActivityPackage sentPackage);
+
+    public void closeFirstPackage(ActivityPackage sentPackage);
+
+    public void finishedBatch(List<ActivityPackage> ackedPackages);
+
+    public void setBatchUpload(boolean batchUpload);
+
+    public void setSendWindow(int sendWindow);
 
-    public void closeFirstPackage();
+    public void setCompression(boolean compression);
+
+    public void setConnected(boolean connected);
 
     public void pauseSending();
 
     public void resumeSending();
 
+    public void flushAndPauseSending(long deadline);
+
+    public void teardown(CountDownLatch released);
+
     public String getFailureMessage();
 
     public boolean dropsOfflineActivities();
 
+    public boolean hasPendingPackages();
+
     public void finishedTrackingActivity(ActivityPackage activityPackage, ResponseData responseData);
 }
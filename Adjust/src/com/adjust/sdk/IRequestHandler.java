@@ -1,5 +1,15 @@
 package com.adjust.sdk;
 
+import java.util.List;
+
 public interface IRequestHandler {
     public void sendPackage(ActivityPackage pack);
+
+    public void sendBatch(List<ActivityPackage> packages);
+
+    public void setHighPriority(boolean highPriority);
+
+    public void setCompression(boolean compression);
+
+    public void teardown();
 }
@@ -0,0 +1,79 @@
+package com.adjust.sdk;
+
+/*
+ * Rolling histogram of request latencies
+ *
+ * Keeps the last WINDOW samples in a ring and counts them in buckets
+ * whose bounds grow by a quarter each, from one millisecond to above
+ * ten minutes. A percentile is answered with the upper bound of its
+ * bucket, at most a quarter above the real value, without sorting.
+ * Not thread safe, each request handler owns one histogram.
+ */
+public class LatencyHistogram {
+    private static final int    WINDOW  = 256;
+    private static final int    BUCKETS = 64;
+    private static final long[] BOUNDS  = buildBounds(); // inclusive upper bound of each bucket
+
+    private final int[] counts;
+    private final int[] ring; // bucket of each sample in the window
+    private int         next;
+    private int         size;
+
+    public LatencyHistogram() {
+        counts = new int[BUCKETS];
+        ring = new int[WINDOW];
+    }
+
+    private static long[] buildBounds() {
+        long[] bounds = new long[BUCKETS];
+        double bound = 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            bounds[i] = (long) Math.ceil(bound);
+            bound *= 1.25;
+        }
+        return bounds;
+    }
+
+    // the oldest sample is dropped once the window is full
+    public void add(long millis) {
+        int bucket = getBucket(millis);
+        if (size == WINDOW) {
+            counts[ring[next]]--;
+        } else {
+            size++;
+        }
+        ring[next] = bucket;
+        counts[bucket]++;
+        next = (next + 1) % WINDOW;
+    }
+
+    public int getCount() {
+        return size;
+    }
+
+    // upper bound of the bucket that holds the percentile, 0 without samples
+    public long getPercentile(double percentile) {
+        if (0 == size) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile * size);
+        int seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return BOUNDS[BUCKETS - 1];
+    }
+
+    private static int getBucket(long millis) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (millis <= BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS - 1;
+    }
+}
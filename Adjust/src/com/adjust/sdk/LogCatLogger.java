@@ -37,6 +37,11 @@ public class LogCatLogger implements Logger {
         }
     }
 
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return this.logLevel.androidLogLevel <= logLevel.androidLogLevel;
+    }
+
     @Override
     public void verbose(String message) {
         if (logLevel.androidLogLevel <= Log.VERBOSE) {
@@ -21,6 +21,9 @@ public interface Logger {
 
     public void setLogLevelString(String logLevelString);
 
+    // whether messages of the level are logged, to skip formatting them otherwise
+    public boolean isLoggable(LogLevel logLevel);
+
     public void verbose(String message);
 
     public void debug(String message);
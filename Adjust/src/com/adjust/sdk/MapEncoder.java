@@ -0,0 +1,229 @@
+package com.adjust.sdk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Encodes parameter maps as JSON and as Base64 of the UTF-8 encoded JSON
+ *
+ * The JSON is written into a reusable buffer with the escaping of
+ * org.json, the Base64 is encoded from it without an intermediate byte
+ * array. The last few maps are cached, so that repeated callback parameters
+ * are only encoded once.
+ */
+public class MapEncoder {
+    private static final int    CACHE_SIZE = 4;
+    private static final char[] ALPHABET   = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] HEX        = "0123456789abcdef".toCharArray();
+
+    private char[]  json   = new char[256];
+    private int     jsonLength;
+    private char[]  base64 = new char[344];
+    private int     base64Length;
+    private int     group;      // bytes of the current base64 group
+    private int     groupBytes; // number of bytes in the group
+
+    private final Entry[] cache = new Entry[CACHE_SIZE];
+    private       int     nextEntry;
+    private       Entry   bufferedEntry; // entry whose json is in the buffer
+
+    public synchronized String toJson(Map<String, String> map) {
+        Entry entry = getEntry(map);
+        if (null == entry.json) {
+            bufferJson(entry);
+            entry.json = new String(json, 0, jsonLength);
+        }
+        return entry.json;
+    }
+
+    public synchronized String toBase64(Map<String, String> map) {
+        Entry entry = getEntry(map);
+        if (null == entry.base64) {
+            bufferJson(entry);
+            writeBase64();
+            entry.base64 = new String(base64, 0, base64Length);
+        }
+        return entry.base64;
+    }
+
+    // the cached entry of an equal map, or a new entry with its json in the buffer
+    private Entry getEntry(Map<String, String> map) {
+        for (Entry entry : cache) {
+            if (null != entry && entry.map.equals(map)) {
+                return entry;
+            }
+        }
+
+        // replace the oldest entry, the map is copied because callers may change it
+        Entry entry = new Entry(new LinkedHashMap<String, String>(map)); // keeps the order of the keys
+        cache[nextEntry] = entry;
+        nextEntry = (nextEntry + 1) % CACHE_SIZE;
+        bufferJson(entry);
+        return entry;
+    }
+
+    // other maps may have been encoded since the entry was created
+    private void bufferJson(Entry entry) {
+        if (entry == bufferedEntry) {
+            return;
+        }
+        if (null != entry.json) {
+            loadJson(entry.json);
+        } else {
+            writeJson(entry.map);
+        }
+        bufferedEntry = entry;
+    }
+
+    private void loadJson(String value) {
+        jsonLength = 0;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            append(value.charAt(i));
+        }
+    }
+
+    private void writeJson(Map<String, String> map) {
+        jsonLength = 0;
+        append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (!first) {
+                append(',');
+            }
+            first = false;
+
+            appendString(entry.getKey());
+            append(':');
+            String value = entry.getValue();
+            if (null == value) {
+                append('n');
+                append('u');
+                append('l');
+                append('l');
+            } else {
+                appendString(value);
+            }
+        }
+        append('}');
+    }
+
+    // same escaping as org.json.JSONStringer
+    private void appendString(String value) {
+        append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                append('\\');
+                append(c);
+                break;
+            case '\t': append('\\'); append('t'); break;
+            case '\b': append('\\'); append('b'); break;
+            case '\n': append('\\'); append('n'); break;
+            case '\r': append('\\'); append('r'); break;
+            case '\f': append('\\'); append('f'); break;
+            default:
+                if (c <= 0x1F) {
+                    append('\\');
+                    append('u');
+                    append('0');
+                    append('0');
+                    append(HEX[c >> 4]);
+                    append(HEX[c & 0xF]);
+                } else {
+                    append(c);
+                }
+                break;
+            }
+        }
+        append('"');
+    }
+
+    private void append(char c) {
+        if (jsonLength == json.length) {
+            char[] larger = new char[json.length * 2];
+            System.arraycopy(json, 0, larger, 0, jsonLength);
+            json = larger;
+        }
+        json[jsonLength++] = c;
+    }
+
+    // encodes the json in the buffer as UTF-8 and the bytes as Base64 without line wraps
+    private void writeBase64() {
+        base64Length = 0;
+        group = 0;
+        groupBytes = 0;
+
+        for (int i = 0; i < jsonLength; i++) {
+            char c = json[i];
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < jsonLength && Character.isLowSurrogate(json[i + 1])) {
+                int codePoint = Character.toCodePoint(c, json[++i]);
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                writeByte('?'); // unpaired surrogate, like String.getBytes
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+
+        // pad the last group
+        if (groupBytes == 1) {
+            group <<= 16;
+            appendBase64(ALPHABET[(group >> 18) & 0x3F]);
+            appendBase64(ALPHABET[(group >> 12) & 0x3F]);
+            appendBase64('=');
+            appendBase64('=');
+        } else if (groupBytes == 2) {
+            group <<= 8;
+            appendBase64(ALPHABET[(group >> 18) & 0x3F]);
+            appendBase64(ALPHABET[(group >> 12) & 0x3F]);
+            appendBase64(ALPHABET[(group >> 6) & 0x3F]);
+            appendBase64('=');
+        }
+    }
+
+    private void writeByte(int b) {
+        group = (group << 8) | (b & 0xFF);
+        if (++groupBytes < 3) {
+            return;
+        }
+
+        appendBase64(ALPHABET[(group >> 18) & 0x3F]);
+        appendBase64(ALPHABET[(group >> 12) & 0x3F]);
+        appendBase64(ALPHABET[(group >> 6) & 0x3F]);
+        appendBase64(ALPHABET[group & 0x3F]);
+        group = 0;
+        groupBytes = 0;
+    }
+
+    private void appendBase64(char c) {
+        if (base64Length == base64.length) {
+            char[] larger = new char[base64.length * 2];
+            System.arraycopy(base64, 0, larger, 0, base64Length);
+            base64 = larger;
+        }
+        base64[base64Length++] = c;
+    }
+
+    private static final class Entry {
+        private final Map<String, String> map;
+        private       String              json;
+        private       String              base64;
+
+        private Entry(Map<String, String> map) {
+            this.map = map;
+        }
+    }
+}
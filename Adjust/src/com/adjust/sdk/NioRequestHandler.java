@@ -0,0 +1,276 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.HttpStatus;
+
+/*
+ * Request handler on the shared selector loop
+ *
+ * Sending only builds the request and hands it to the loop, so any number
+ * of packages can be in flight without a thread per request. The results
+ * are reported from the selector thread, the package handler moves them
+ * to its own thread. A batch is sent as one request per package, all at
+ * the same time, and is finished when the last of them is.
+ * The loop speaks plain http only, the base url has to point to a local
+ * stand-in or a proxy that terminates TLS. A package whose request cannot
+ * be built is dropped, only failures of the request itself are retried.
+ */
+public class NioRequestHandler implements IRequestHandler {
+    private static final int CONNECTION_TIMEOUT = Constants.ONE_MINUTE;
+    private static final int SOCKET_TIMEOUT     = Constants.ONE_MINUTE;
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private final IPackageHandler packageHandler;
+    private final Logger          logger;
+    private final int             connectionTimeout;
+    private final int             socketTimeout;
+    private final FormEncoder     formEncoder; // used on the thread of the package handler
+    private RequestCompressor     compressor;  // null unless compression is enabled
+    private SelectorLoop          loop;        // null if it could not be started
+
+    public NioRequestHandler(IPackageHandler packageHandler) {
+        this(packageHandler, CONNECTION_TIMEOUT, SOCKET_TIMEOUT);
+    }
+
+    public NioRequestHandler(IPackageHandler packageHandler, int connectionTimeout, int socketTimeout) {
+        this.packageHandler = packageHandler;
+        this.logger = AdjustFactory.getLogger();
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+        this.formEncoder = new FormEncoder();
+
+        String baseUrl = AdjustFactory.getBaseUrl();
+        if (!supportsUrl(baseUrl)) {
+            throw new IllegalArgumentException(String.format("Unsupported base url %s, only http is supported", baseUrl));
+        }
+
+        try {
+            this.loop = SelectorLoop.acquire();
+        } catch (IOException e) {
+            logger.error(String.format("Failed to start selector loop (%s)", e));
+        }
+    }
+
+    // whether the selector loop can send to the url
+    public static boolean supportsUrl(String url) {
+        return null != url && url.regionMatches(true, 0, "http://", 0, "http://".length());
+    }
+
+    @Override
+    public void sendPackage(final ActivityPackage pack) {
+        submit(pack, new PackageCallback() {
+            @Override
+            public void completed(HttpResult result) {
+                requestFinished(result, pack);
+                packageHandler.sendNextPackage(pack);
+            }
+
+            @Override
+            public void failed(IOException exception) {
+                closePackage(pack, getReasonString(exception));
+            }
+
+            @Override
+            public void dropped(String reasonString) {
+                dropPackage(pack, reasonString);
+                packageHandler.sendNextPackage(pack);
+            }
+        });
+    }
+
+    // one request per package, the batch is finished when all of them are
+    @Override
+    public void sendBatch(final List<ActivityPackage> packages) {
+        final List<ActivityPackage> ackedPackages = new ArrayList<ActivityPackage>();
+        final int[] remaining = { packages.size() };
+
+        for (final ActivityPackage activityPackage : packages) {
+            submit(activityPackage, new PackageCallback() {
+                @Override
+                public void completed(HttpResult result) {
+                    requestFinished(result, activityPackage);
+                    synchronized (ackedPackages) {
+                        ackedPackages.add(activityPackage);
+                        finishBatchItem();
+                    }
+                }
+
+                @Override
+                public void failed(IOException exception) {
+                    retryPackage(activityPackage, getReasonString(exception));
+                    synchronized (ackedPackages) {
+                        finishBatchItem();
+                    }
+                }
+
+                // acked like a sent package, so that it is removed from the queue
+                @Override
+                public void dropped(String reasonString) {
+                    dropPackage(activityPackage, reasonString);
+                    synchronized (ackedPackages) {
+                        ackedPackages.add(activityPackage);
+                        finishBatchItem();
+                    }
+                }
+
+                private void finishBatchItem() {
+                    if (--remaining[0] == 0) {
+                        // in the order of the batch, the package handler removes them by position
+                        List<ActivityPackage> acked = new ArrayList<ActivityPackage>();
+                        for (ActivityPackage batchPackage : packages) {
+                            if (ackedPackages.contains(batchPackage)) {
+                                acked.add(batchPackage);
+                            }
+                        }
+                        packageHandler.finishedBatch(acked);
+                    }
+                }
+            });
+        }
+    }
+
+    // the selector thread is shared by all handlers, its priority is left alone
+    @Override
+    public void setHighPriority(boolean highPriority) {
+    }
+
+    // deflate request bodies above the compression threshold
+    @Override
+    public void setCompression(boolean compression) {
+        if (compression && null == compressor) {
+            compressor = new RequestCompressor();
+        } else if (!compression && null != compressor) {
+            compressor.end();
+            compressor = null;
+        }
+    }
+
+    // requests still in flight are dropped if this was the last user of the loop
+    @Override
+    public void teardown() {
+        setCompression(false);
+        if (null != loop) {
+            SelectorLoop.release(loop);
+            loop = null;
+        }
+    }
+
+    // errors in building the request are permanent, only the loop reports transient ones
+    private void submit(ActivityPackage activityPackage, PackageCallback callback) {
+        URL url;
+        Map<String, String> headers;
+        byte[] content;
+        try {
+            url = new URL(AdjustFactory.getBaseUrl() + activityPackage.getPath());
+            headers = getHeaders(activityPackage);
+            content = compress(getContent(activityPackage), headers);
+        } catch (MalformedURLException e) {
+            callback.dropped(String.format("Invalid url: %s", e));
+            return;
+        } catch (IOException e) {
+            callback.dropped(String.format("Failed to encode parameters: %s", e));
+            return;
+        } catch (RuntimeException e) {
+            callback.dropped(String.format("Runtime exception: %s", e));
+            return;
+        }
+
+        try {
+            if (null == loop) {
+                throw new IOException("Selector loop is not running");
+            }
+            loop.submit(url, headers, FORM_CONTENT_TYPE, content, connectionTimeout, socketTimeout, callback);
+        } catch (IllegalArgumentException e) {
+            callback.dropped(String.format("Request failed: %s", e));
+        } catch (IOException e) {
+            callback.failed(e);
+        }
+    }
+
+    private void requestFinished(HttpResult result, ActivityPackage activityPackage) {
+        int statusCode = result.getStatusCode();
+        if (result.isTruncated()) {
+            logger.warn(String.format(Locale.US, "Response was cut off after %d bytes", result.getBody().length));
+        }
+        ResponseData responseData = ResponseData.fromJson(result.getBody());
+
+        if (HttpStatus.SC_OK == statusCode) {
+            responseData.setWasSuccess(true);
+            logger.info(activityPackage.getSuccessMessage());
+        } else {
+            logger.error(String.format("%s. (%s)", activityPackage.getFailureMessage(), responseData.getError()));
+        }
+
+        packageHandler.finishedTrackingActivity(activityPackage, responseData);
+    }
+
+    // the package cannot be sent, so it is not retried
+    private void dropPackage(ActivityPackage activityPackage, String reasonString) {
+        logger.error(String.format("%s. (%s)", activityPackage.getFailureMessage(), reasonString));
+        packageHandler.finishedTrackingActivity(activityPackage, ResponseData.fromError(reasonString));
+    }
+
+    // close the package because its request failed
+    private void closePackage(ActivityPackage activityPackage, String reasonString) {
+        retryPackage(activityPackage, reasonString);
+        packageHandler.closeFirstPackage(activityPackage);
+    }
+
+    private void retryPackage(ActivityPackage activityPackage, String reasonString) {
+        logger.error(String.format("%s. (%s) %s", activityPackage.getFailureMessage(), reasonString, packageHandler.getFailureMessage()));
+
+        ResponseData responseData = ResponseData.fromError(reasonString);
+        responseData.setWillRetry(!packageHandler.dropsOfflineActivities());
+        packageHandler.finishedTrackingActivity(activityPackage, responseData);
+    }
+
+    private String getReasonString(IOException exception) {
+        if (exception instanceof SocketTimeoutException) {
+            return String.format("Request timed out: %s", exception);
+        }
+        return String.format("Request failed: %s", exception);
+    }
+
+    private Map<String, String> getHeaders(ActivityPackage activityPackage) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("User-Agent", activityPackage.getUserAgent());
+        headers.put("Client-SDK", activityPackage.getClientSdk());
+        headers.put("Accept-Language", Locale.getDefault().getLanguage());
+        return headers;
+    }
+
+    private byte[] getContent(ActivityPackage activityPackage) throws IOException {
+        byte[] body = activityPackage.getBody(formEncoder);
+        return formEncoder.append(body, "sent_at", Util.dateFormat(System.currentTimeMillis()));
+    }
+
+    // deflate the content if it is long enough and gets shorter
+    private byte[] compress(byte[] content, Map<String, String> headers) {
+        if (null == compressor || content.length < AdjustFactory.getCompressionThreshold()) {
+            return content;
+        }
+
+        byte[] compressed = compressor.compress(content);
+        if (compressed.length >= content.length) {
+            return content;
+        }
+
+        headers.put("Content-Encoding", "deflate");
+        return compressed;
+    }
+
+    // also told when the request of a package could not be built
+    private interface PackageCallback extends SelectorLoop.Callback {
+        public void dropped(String reasonString);
+    }
+}
@@ -9,18 +9,16 @@
 
 package com.adjust.sdk;
 
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
-import org.json.JSONObject;
-
 import android.content.Context;
-import android.text.TextUtils;
-import android.util.Base64;
 
 public class PackageBuilder {
 
+    // shared by all builders, encodes the callback and deep link parameters
+    private static final MapEncoder mapEncoder = new MapEncoder();
+
     private Context context;
 
     // general
@@ -33,6 +31,7 @@ public class PackageBuilder {
     private String clientSdk;
     private String uuid;
     private String environment;
+    private GeneralAttributes generalAttributes;
 
     // sessions
     private int    sessionCount;
@@ -53,11 +52,45 @@ public class PackageBuilder {
     // reattributions
     private Map<String, String> deepLinkParameters;
 
+    // cached event suffix of the last event token
+    private String suffixEventToken;
+    private String eventSuffix;
+
     public PackageBuilder(Context context)
     {
         this.context = context;
     }
 
+    // clear all attributes so that this builder can be reused for another package
+    public void reset() {
+        appToken = null;
+        macSha1 = null;
+        macShortMd5 = null;
+        androidId = null;
+        fbAttributionId = null;
+        userAgent = null;
+        clientSdk = null;
+        uuid = null;
+        environment = null;
+        generalAttributes = null;
+
+        sessionCount = 0;
+        subsessionCount = 0;
+        createdAt = 0;
+        sessionLength = 0;
+        timeSpent = 0;
+        lastInterval = 0;
+        defaultTracker = null;
+        referrer = null;
+
+        eventCount = 0;
+        eventToken = null;
+        amountInCents = 0;
+        callbackParameters = null;
+
+        deepLinkParameters = null;
+    }
+
     public void setAppToken(String appToken) {
         this.appToken = appToken;
     }
@@ -94,6 +127,11 @@ public class PackageBuilder {
         this.environment = environment;
     }
 
+    // replaces the single general attributes above, except for the uuid
+    public void setGeneralAttributes(GeneralAttributes generalAttributes) {
+        this.generalAttributes = generalAttributes;
+    }
+
     public void setSessionCount(int sessionCount) {
         this.sessionCount = sessionCount;
     }
@@ -176,56 +214,48 @@ public class PackageBuilder {
     }
 
     public ActivityPackage buildSessionPackage() {
-        Map<String, String> parameters = getDefaultParameters();
-        addDuration(parameters, "last_interval", lastInterval);
-        addString(parameters, "default_tracker", defaultTracker);
-        addString(parameters, Constants.REFERRER, referrer);
-
         ActivityPackage sessionPackage = getDefaultActivityPackage();
+        sessionPackage.setNumber(PackageParameter.LAST_INTERVAL, lastInterval);
+        sessionPackage.setString(PackageParameter.DEFAULT_TRACKER, getDefaultTracker());
+        sessionPackage.setString(PackageParameter.REFERRER, referrer);
+
         sessionPackage.setPath("/startup");
         sessionPackage.setActivityKind(ActivityKind.SESSION);
         sessionPackage.setSuffix("");
-        sessionPackage.setParameters(parameters);
 
         return sessionPackage;
     }
 
     public ActivityPackage buildEventPackage() {
-        Map<String, String> parameters = getDefaultParameters();
-        injectEventParameters(parameters);
-
         ActivityPackage eventPackage = getDefaultActivityPackage();
+        injectEventParameters(eventPackage);
+
         eventPackage.setPath("/event");
         eventPackage.setActivityKind(ActivityKind.EVENT);
         eventPackage.setSuffix(getEventSuffix());
-        eventPackage.setParameters(parameters);
 
         return eventPackage;
     }
 
     public ActivityPackage buildRevenuePackage() {
-        Map<String, String> parameters = getDefaultParameters();
-        injectEventParameters(parameters);
-        addString(parameters, "amount", getAmountString());
-
         ActivityPackage revenuePackage = getDefaultActivityPackage();
+        injectEventParameters(revenuePackage);
+        revenuePackage.setNumber(PackageParameter.AMOUNT, getAmountInMillis());
+
         revenuePackage.setPath("/revenue");
         revenuePackage.setActivityKind(ActivityKind.REVENUE);
         revenuePackage.setSuffix(getRevenueSuffix());
-        revenuePackage.setParameters(parameters);
 
         return revenuePackage;
     }
 
     public ActivityPackage buildReattributionPackage() {
-        Map<String, String> parameters = getDefaultParameters();
-        addMapJson(parameters, "deeplink_parameters", deepLinkParameters);
-
         ActivityPackage reattributionPackage = getDefaultActivityPackage();
+        reattributionPackage.setString(PackageParameter.DEEPLINK_PARAMETERS, getMapJson(deepLinkParameters));
+
         reattributionPackage.setPath("/reattribute");
         reattributionPackage.setActivityKind(ActivityKind.REATTRIBUTION);
         reattributionPackage.setSuffix("");
-        reattributionPackage.setParameters(parameters);
 
         return reattributionPackage;
     }
@@ -239,51 +269,65 @@ public class PackageBuilder {
         return true;
     }
 
+    // the numbers are stored as they are and formatted when the package is sent
     private ActivityPackage getDefaultActivityPackage() {
         ActivityPackage activityPackage = new ActivityPackage();
-        activityPackage.setUserAgent(userAgent);
-        activityPackage.setClientSdk(clientSdk);
-        return activityPackage;
-    }
-
-    private Map<String, String> getDefaultParameters() {
-        Map<String, String> parameters = new HashMap<String, String>();
 
         // general
-        addDate(parameters, "created_at", createdAt);
-        addString(parameters, "app_token", appToken);
-        addString(parameters, "mac_sha1", macSha1);
-        addString(parameters, "mac_md5", macShortMd5);
-        addString(parameters, "android_id", androidId);
-        addString(parameters, "android_uuid", uuid);
-        addString(parameters, "fb_id", fbAttributionId);
-        addString(parameters, "environment", environment);
-        String gpsAdid = Util.getGpsAdid(context);
-        addString(parameters, "gps_adid", gpsAdid);
+        activityPackage.setNumber(PackageParameter.CREATED_AT, createdAt);
+        activityPackage.setString(PackageParameter.ANDROID_UUID, uuid);
+        if (null != generalAttributes) {
+            // referenced, not copied
+            activityPackage.setGeneralAttributes(generalAttributes);
+            activityPackage.setUserAgent(generalAttributes.getUserAgent());
+            activityPackage.setClientSdk(generalAttributes.getClientSdk());
+        } else {
+            activityPackage.setUserAgent(userAgent);
+            activityPackage.setClientSdk(clientSdk);
+            activityPackage.setString(PackageParameter.APP_TOKEN, appToken);
+            activityPackage.setString(PackageParameter.MAC_SHA1, macSha1);
+            activityPackage.setString(PackageParameter.MAC_MD5, macShortMd5);
+            activityPackage.setString(PackageParameter.ANDROID_ID, androidId);
+            activityPackage.setString(PackageParameter.FB_ID, fbAttributionId);
+            activityPackage.setString(PackageParameter.ENVIRONMENT, environment);
+            String gpsAdid = Util.getGpsAdid(context);
+            activityPackage.setString(PackageParameter.GPS_ADID, gpsAdid);
+        }
 
         // session related (used for events as well)
-        addInt(parameters, "session_count", sessionCount);
-        addInt(parameters, "subsession_count", subsessionCount);
-        addDuration(parameters, "session_length", sessionLength);
-        addDuration(parameters, "time_spent", timeSpent);
+        activityPackage.setNumber(PackageParameter.SESSION_COUNT, sessionCount);
+        activityPackage.setNumber(PackageParameter.SUBSESSION_COUNT, subsessionCount);
+        activityPackage.setNumber(PackageParameter.SESSION_LENGTH, sessionLength);
+        activityPackage.setNumber(PackageParameter.TIME_SPENT, timeSpent);
 
-        return parameters;
+        return activityPackage;
     }
 
-    private void injectEventParameters(Map<String, String> parameters) {
-        addInt(parameters, "event_count", eventCount);
-        addString(parameters, "event_token", eventToken);
-        addMapBase64(parameters, "params", callbackParameters);
+    private void injectEventParameters(ActivityPackage activityPackage) {
+        activityPackage.setNumber(PackageParameter.EVENT_COUNT, eventCount);
+        activityPackage.setString(PackageParameter.EVENT_TOKEN, eventToken);
+        activityPackage.setString(PackageParameter.PARAMS, getMapBase64(callbackParameters));
     }
 
-    private String getAmountString() {
+    private String getDefaultTracker() {
+        if (null != generalAttributes) {
+            return generalAttributes.getDefaultTracker();
+        }
+        return defaultTracker;
+    }
+
+    private long getAmountInMillis() {
         long amountInMillis = Math.round(10 * amountInCents);
         amountInCents = amountInMillis / 10.0; // now rounded to one decimal point
-        return Long.toString(amountInMillis);
+        return amountInMillis;
     }
 
     private String getEventSuffix() {
-        return String.format(" '%s'", eventToken);
+        if (!eventToken.equals(suffixEventToken)) {
+            suffixEventToken = eventToken;
+            eventSuffix = String.format(" '%s'", eventToken);
+        }
+        return eventSuffix;
     }
 
     private String getRevenueSuffix() {
@@ -294,61 +338,19 @@ public class PackageBuilder {
         }
     }
 
-    private void addString(Map<String, String> parameters, String key, String value) {
-        if (TextUtils.isEmpty(value)) {
-            return;
-        }
-
-        parameters.put(key, value);
-    }
-
-    private void addInt(Map<String, String> parameters, String key, long value) {
-        if (value < 0) {
-            return;
-        }
-
-        String valueString = Long.toString(value);
-        addString(parameters, key, valueString);
-    }
-
-    private void addDate(Map<String, String> parameters, String key, long value) {
-        if (value < 0) {
-            return;
-        }
-
-        String dateString = Util.dateFormat(value);
-        addString(parameters, key, dateString);
-    }
-
-    private void addDuration(Map<String, String> parameters, String key, long durationInMilliSeconds) {
-        if (durationInMilliSeconds < 0) {
-            return;
-        }
-
-        long durationInSeconds = (durationInMilliSeconds + 500) / 1000;
-        addInt(parameters, key, durationInSeconds);
-    }
-
-    private void addMapBase64(Map<String, String> parameters, String key, Map<String, String> map) {
+    private String getMapBase64(Map<String, String> map) {
         if (null == map) {
-            return;
+            return null;
         }
 
-        JSONObject jsonObject = new JSONObject(map);
-        byte[] jsonBytes = jsonObject.toString().getBytes();
-        String encodedMap = Base64.encodeToString(jsonBytes, Base64.NO_WRAP);
-
-        addString(parameters, key, encodedMap);
+        return mapEncoder.toBase64(map);
     }
 
-    private void addMapJson(Map<String, String> parameters, String key, Map<String, String> map) {
+    private String getMapJson(Map<String, String> map) {
         if (null == map) {
-            return;
+            return null;
         }
 
-        JSONObject jsonObject = new JSONObject(map);
-        String jsonString = jsonObject.toString();
-
-        addString(parameters, key, jsonString);
+        return mapEncoder.toJson(map);
     }
 }
@@ -23,38 +23,55 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 // persistent
-public class PackageHandler extends HandlerThread implements IPackageHandler {
-    private static final String PACKAGE_QUEUE_FILENAME = "AdjustIoPackageQueue";
+public class PackageHandler implements IPackageHandler {
+    private static final String PACKAGE_QUEUE_FILENAME  = "AdjustIoPackageQueue";
+    private static final long   TEARDOWN_RETRY_INTERVAL = Constants.HALF_SECOND;
 
     private final InternalHandler       internalHandler;
-    private       IRequestHandler       requestHandler;
+    private final IExecutorProvider     executorProvider;
+    private       List<IRequestHandler> requestHandlers; // one per slot of the window
+    private       IConnectivityMonitor  connectivityMonitor;
+    private       boolean               connected;
     private       ActivityHandler       activityHandler;
     private       List<ActivityPackage> packageQueue;
-    private       AtomicBoolean         isSending;
+    private       List<InFlight>        inFlight; // head of the queue, in the same order
+    private       int                   sendWindow;
+    private       boolean               compression;
+    private       boolean               rewinding;
+    private       long                  retryAt; // elapsed realtime before which failed packages wait
+    private final Random                random;
+    private final FormEncoder           formEncoder; // encodes the body of added packages
     private       boolean               paused;
+    private volatile boolean            batchUpload;
+    private       List<ActivityPackage> sendingBatch; // packages of the current batch request
+    private volatile int                pendingPackages;
+    private volatile int                flushGeneration;
+    private       int                   flushing; // generation of the running flush
     private       Context               context;
     private       boolean               dropOfflineActivities;
     private       Logger                logger;
 
     public PackageHandler(ActivityHandler activityHandler, Context context, boolean dropOfflineActivities) {
-        super(Constants.LOGTAG, MIN_PRIORITY);
-        setDaemon(true);
-        start();
-        this.internalHandler = new InternalHandler(getLooper(), this);
+        this.executorProvider = AdjustFactory.getExecutorProvider();
+        Looper looper = executorProvider.getLooper(IExecutorProvider.PACKAGE_HANDLER);
+        this.internalHandler = new InternalHandler(looper, this);
         this.logger = AdjustFactory.getLogger();
 
         this.activityHandler = activityHandler;
         this.context = context;
         this.dropOfflineActivities = dropOfflineActivities;
+        this.random = new Random();
+        this.formEncoder = new FormEncoder();
 
         Message message = Message.obtain();
         message.arg1 = InternalHandler.INIT;
@@ -78,37 +95,112 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
         internalHandler.sendMessage(message);
     }
 
-    // remove oldest package and try to send the next one
+    // acknowledge the sent package and try to send the next one
     // (after success or possibly permanent failure)
     @Override
-    public void sendNextPackage() {
+    public void sendNextPackage(ActivityPackage sentPackage) {
         Message message = Message.obtain();
         message.arg1 = InternalHandler.SEND_NEXT;
+        message.obj = sentPackage;
         internalHandler.sendMessage(message);
     }
 
     // close the package to retry in the future (after temporary failure)
     @Override
-    public void closeFirstPackage() {
+    public void closeFirstPackage(ActivityPackage sentPackage) {
         if (dropOfflineActivities) {
-            sendNextPackage();
-        } else {
-            isSending.set(false);
+            sendNextPackage(sentPackage);
+            return;
         }
+
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.CLOSE;
+        message.obj = sentPackage;
+        internalHandler.sendMessage(message);
+    }
+
+    // remove the packages the server answered for, retry the others later
+    @Override
+    public void finishedBatch(List<ActivityPackage> ackedPackages) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.FINISHED_BATCH;
+        message.obj = ackedPackages;
+        internalHandler.sendMessage(message);
+    }
+
+    // send several packages per request when there is a backlog
+    @Override
+    public void setBatchUpload(boolean batchUpload) {
+        this.batchUpload = batchUpload;
+    }
+
+    // number of packages that can be sent before the first one is acknowledged
+    @Override
+    public void setSendWindow(int sendWindow) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.SEND_WINDOW;
+        message.arg2 = sendWindow;
+        internalHandler.sendMessage(message);
+    }
+
+    // deflate the request bodies of all request handlers
+    @Override
+    public void setCompression(boolean compression) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.COMPRESSION;
+        message.arg2 = compression ? 1 : 0;
+        internalHandler.sendMessage(message);
+    }
+
+    // called by the connectivity monitor when the network state changed
+    @Override
+    public void setConnected(boolean connected) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.CONNECTIVITY;
+        message.arg2 = connected ? 1 : 0;
+        internalHandler.sendMessage(message);
     }
 
     // interrupt the sending loop after the current request has finished
     @Override
     public void pauseSending() {
+        flushGeneration++; // cancels a running flush
         paused = true;
     }
 
     // allow sending requests again
     @Override
     public void resumeSending() {
+        flushGeneration++;
         paused = false;
     }
 
+    // keep sending until the queue is empty or the deadline expired, then pause
+    @Override
+    public void flushAndPauseSending(long deadline) {
+        int generation = ++flushGeneration;
+        paused = false;
+
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.FLUSH;
+        message.arg2 = generation;
+        internalHandler.sendMessage(message);
+
+        Message deadlineMessage = Message.obtain();
+        deadlineMessage.arg1 = InternalHandler.FLUSH_DEADLINE;
+        deadlineMessage.arg2 = generation;
+        internalHandler.sendMessageDelayed(deadlineMessage, deadline);
+    }
+
+    // stop sending and release the threads once the current request finished
+    @Override
+    public void teardown(CountDownLatch released) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.TEARDOWN;
+        message.obj = released;
+        internalHandler.sendMessage(message);
+    }
+
     // short info about how failing packages are handled
     @Override
     public String getFailureMessage() {
@@ -123,6 +215,12 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
         return dropOfflineActivities;
     }
 
+    // whether there are packages in the queue that still need to be sent
+    @Override
+    public boolean hasPendingPackages() {
+        return pendingPackages > 0;
+    }
+
     @Override
     public void finishedTrackingActivity(ActivityPackage activityPackage, ResponseData responseData) {
         responseData.setActivityKind(activityPackage.getActivityKind());
@@ -130,10 +228,18 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
     }
 
     private static final class InternalHandler extends Handler {
-        private static final int INIT       = 1;
-        private static final int ADD        = 2;
-        private static final int SEND_NEXT  = 3;
-        private static final int SEND_FIRST = 4;
+        private static final int INIT           = 1;
+        private static final int ADD            = 2;
+        private static final int SEND_NEXT      = 3;
+        private static final int SEND_FIRST     = 4;
+        private static final int FLUSH          = 5;
+        private static final int FLUSH_DEADLINE = 6;
+        private static final int TEARDOWN       = 7;
+        private static final int FINISHED_BATCH = 8;
+        private static final int CLOSE          = 9;
+        private static final int SEND_WINDOW    = 10;
+        private static final int COMPRESSION    = 11;
+        private static final int CONNECTIVITY   = 12;
 
         private final WeakReference<PackageHandler> packageHandlerReference;
 
@@ -163,7 +269,34 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
                     packageHandler.sendFirstInternal();
                     break;
                 case SEND_NEXT:
-                    packageHandler.sendNextInternal();
+                    packageHandler.sendNextInternal((ActivityPackage) message.obj);
+                    break;
+                case CLOSE:
+                    packageHandler.closeInternal((ActivityPackage) message.obj);
+                    break;
+                case SEND_WINDOW:
+                    packageHandler.setSendWindowInternal(message.arg2);
+                    break;
+                case COMPRESSION:
+                    packageHandler.setCompressionInternal(message.arg2 == 1);
+                    break;
+                case CONNECTIVITY:
+                    packageHandler.setConnectedInternal(message.arg2 == 1);
+                    break;
+                case FLUSH:
+                    packageHandler.flushInternal(message.arg2);
+                    break;
+                case FLUSH_DEADLINE:
+                    packageHandler.flushDeadlineInternal(message.arg2);
+                    break;
+                case TEARDOWN:
+                    CountDownLatch released = (CountDownLatch) message.obj;
+                    packageHandler.teardownInternal(released);
+                    break;
+                case FINISHED_BATCH:
+                    @SuppressWarnings("unchecked")
+                    List<ActivityPackage> ackedPackages = (List<ActivityPackage>) message.obj;
+                    packageHandler.finishedBatchInternal(ackedPackages);
                     break;
             }
         }
@@ -172,22 +305,45 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
     // internal methods run in dedicated queue thread
 
     private void initInternal() {
-        requestHandler = AdjustFactory.getRequestHandler(this);
+        requestHandlers = new ArrayList<IRequestHandler>();
+        requestHandlers.add(AdjustFactory.getRequestHandler(this));
 
-        isSending = new AtomicBoolean();
+        inFlight = new ArrayList<InFlight>();
+        sendWindow = 1;
+
+        connectivityMonitor = AdjustFactory.getConnectivityMonitor(context);
+        connected = connectivityMonitor.isConnected();
+        connectivityMonitor.start(this);
 
         readPackageQueue();
     }
 
     private void addInternal(ActivityPackage newPackage) {
+        // encode the body once, it is written to disk with the package
+        // and a package without it would be sent empty after a restart
+        try {
+            newPackage.getBody(formEncoder);
+        } catch (IOException e) {
+            logger.error(String.format("Failed to encode package, dropping it (%s)", e));
+            return;
+        }
+
         packageQueue.add(newPackage);
-        logger.debug(String.format(Locale.US, "Added package %d (%s)", packageQueue.size(), newPackage));
-        logger.verbose(newPackage.getExtendedString());
+        pendingPackages = packageQueue.size();
+        if (logger.isLoggable(Logger.LogLevel.DEBUG)) {
+            logger.debug(String.format(Locale.US, "Added package %d (%s)", packageQueue.size(), newPackage));
+        }
+        // reads the parameters back from the body, only done when it is logged
+        if (logger.isLoggable(Logger.LogLevel.VERBOSE)) {
+            logger.verbose(newPackage.getExtendedString());
+        }
 
         writePackageQueue();
     }
 
     private void sendFirstInternal() {
+        checkFlushInternal();
+
         if (packageQueue.isEmpty()) {
             return;
         }
@@ -196,22 +352,375 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
             logger.debug("Package handler is paused");
             return;
         }
-        if (isSending.getAndSet(true)) {
+        if (!connected) {
+            logger.debug("Package handler is waiting for connectivity");
+            return;
+        }
+
+        if (SystemClock.elapsedRealtime() < retryAt) {
+            logger.verbose("Package handler is waiting to retry");
+            return;
+        }
+
+        if (!canSendMore()) {
             logger.verbose("Package handler is already sending");
             return;
         }
 
-        ActivityPackage firstPackage = packageQueue.get(0);
-        requestHandler.sendPackage(firstPackage);
+        if (batchUpload && inFlight.isEmpty() && packageQueue.size() > 1) {
+            List<ActivityPackage> batch = getBatch();
+            if (batch.size() > 1) {
+                sendingBatch = batch;
+                requestHandlers.get(0).sendBatch(batch);
+                return;
+            }
+        }
+
+        while (canSendMore()) {
+            ActivityPackage nextPackage = packageQueue.get(inFlight.size());
+            int slot = getFreeSlot();
+            inFlight.add(new InFlight(nextPackage, slot));
+            requestHandlers.get(slot).sendPackage(nextPackage);
+        }
+    }
+
+    // whether the next package can be sent before the earlier ones are acknowledged
+    private boolean canSendMore() {
+        if (null != sendingBatch || rewinding) {
+            return false;
+        }
+        if (inFlight.size() >= sendWindow || inFlight.size() >= packageQueue.size()) {
+            return false;
+        }
+        if (inFlight.isEmpty()) {
+            return true;
+        }
+
+        // sessions are sent alone, once everything before them was acknowledged
+        ActivityPackage nextPackage = packageQueue.get(inFlight.size());
+        ActivityPackage firstPackage = inFlight.get(0).activityPackage;
+        return ActivityKind.SESSION != nextPackage.getActivityKind()
+            && ActivityKind.SESSION != firstPackage.getActivityKind();
+    }
+
+    // request handler that is not waiting for a response, created on demand
+    private int getFreeSlot() {
+        for (int slot = 0; ; slot++) {
+            if (slot == requestHandlers.size()) {
+                IRequestHandler requestHandler = AdjustFactory.getRequestHandler(this);
+                if (flushing != 0) {
+                    requestHandler.setHighPriority(true);
+                }
+                if (compression) {
+                    requestHandler.setCompression(true);
+                }
+                requestHandlers.add(requestHandler);
+                return slot;
+            }
+            if (!isSlotBusy(slot)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean isSlotBusy(int slot) {
+        for (InFlight sent : inFlight) {
+            if (!sent.finished && sent.slot == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the oldest package with this identity that has no response yet
+    private InFlight findInFlight(ActivityPackage sentPackage) {
+        for (InFlight sent : inFlight) {
+            if (!sent.finished && sent.activityPackage == sentPackage) {
+                return sent;
+            }
+        }
+        return null;
+    }
+
+    // the oldest packages up to the package and byte limits, with the same headers
+    private List<ActivityPackage> getBatch() {
+        int maxPackages = AdjustFactory.getBatchMaxPackages();
+        int maxBytes = AdjustFactory.getBatchMaxBytes();
+
+        List<ActivityPackage> batch = new ArrayList<ActivityPackage>();
+        int bytes = 0;
+        for (ActivityPackage activityPackage : packageQueue) {
+            if (batch.size() >= maxPackages) {
+                break;
+            }
+
+            // the request carries the headers of the first package
+            if (!batch.isEmpty() && !hasSameHeaders(batch.get(0), activityPackage)) {
+                break;
+            }
+
+            try {
+                bytes += activityPackage.getBody().length;
+            } catch (IOException e) {
+                break; // the request handler reports it when sent alone
+            }
+
+            if (bytes > maxBytes && !batch.isEmpty()) {
+                break;
+            }
+            batch.add(activityPackage);
+        }
+        return batch;
+    }
+
+    private static boolean hasSameHeaders(ActivityPackage first, ActivityPackage other) {
+        return equals(first.getUserAgent(), other.getUserAgent())
+            && equals(first.getClientSdk(), other.getClientSdk());
+    }
+
+    private static boolean equals(String first, String other) {
+        return null == first ? null == other : first.equals(other);
+    }
+
+    private void finishedBatchInternal(List<ActivityPackage> ackedPackages) {
+        if (null == sendingBatch) {
+            return;
+        }
+
+        // the batch is at the head of the queue, the acked packages are in the same order
+        int batchSize = sendingBatch.size();
+        List<ActivityPackage> retryPackages = new ArrayList<ActivityPackage>();
+        int retries = 0;
+        if (!dropOfflineActivities) {
+            int acked = 0;
+            for (ActivityPackage activityPackage : sendingBatch) {
+                if (acked < ackedPackages.size() && activityPackage == ackedPackages.get(acked)) {
+                    acked++;
+                } else {
+                    retries = Math.max(retries, activityPackage.increaseRetries());
+                    retryPackages.add(activityPackage);
+                }
+            }
+        }
+        sendingBatch = null;
+
+        packageQueue.subList(0, batchSize).clear();
+        packageQueue.addAll(0, retryPackages);
+        pendingPackages = packageQueue.size();
+        logger.debug(String.format(Locale.US, "Package handler removed %d of %d batched packages",
+                batchSize - retryPackages.size(), batchSize));
+
+        writePackageQueue();
+
+        // keep sending unless some packages have to be retried later
+        if (retryPackages.isEmpty()) {
+            sendFirstInternal();
+        } else {
+            backOffInternal(retries);
+        }
+    }
+
+    private void sendNextInternal(ActivityPackage sentPackage) {
+        InFlight sent = findInFlight(sentPackage);
+        if (null == sent) {
+            return;
+        }
+
+        sent.finished = true;
+        sent.delivered = true;
+        if (rewinding) {
+            finishRewindInternal();
+            return;
+        }
+
+        // remove the acknowledged packages in order, later ones wait for earlier ones
+        int removed = 0;
+        while (!inFlight.isEmpty() && inFlight.get(0).finished) {
+            inFlight.remove(0);
+            packageQueue.remove(0);
+            removed++;
+        }
+        pendingPackages = packageQueue.size();
+
+        if (removed > 0) {
+            writePackageQueue();
+        }
+        sendFirstInternal();
+    }
+
+    private void closeInternal(ActivityPackage sentPackage) {
+        InFlight sent = findInFlight(sentPackage);
+        if (null == sent) {
+            return;
+        }
+
+        sent.finished = true;
+        if (!rewinding && inFlight.size() > 1) {
+            logger.debug(String.format(Locale.US, "Rewinding %d packages in flight", inFlight.size()));
+        }
+        rewinding = true;
+        finishRewindInternal();
     }
 
-    private void sendNextInternal() {
-        packageQueue.remove(0);
+    // once all responses arrived, drop the delivered packages and keep the others for later
+    private void finishRewindInternal() {
+        for (InFlight sent : inFlight) {
+            if (!sent.finished) {
+                return;
+            }
+        }
+
+        int index = 0;
+        int retries = 0;
+        for (InFlight sent : inFlight) {
+            if (sent.delivered) {
+                packageQueue.remove(index);
+            } else {
+                retries = Math.max(retries, sent.activityPackage.increaseRetries());
+                index++;
+            }
+        }
+        inFlight.clear();
+        rewinding = false;
+        pendingPackages = packageQueue.size();
+
+        // the attempt counts are written as well
         writePackageQueue();
-        isSending.set(false);
+        backOffInternal(retries);
+    }
+
+    // wait up to twice as long after each failed attempt of the same package,
+    // a random part of it (full jitter) so that clients don't retry in lockstep
+    private void backOffInternal(int retries) {
+        long maxDelay = AdjustFactory.getRetryBaseInterval() << Math.min(retries - 1, 30);
+        maxDelay = Math.min(maxDelay, AdjustFactory.getRetryMaxInterval());
+        long delay = (long) (random.nextDouble() * maxDelay);
+
+        retryAt = SystemClock.elapsedRealtime() + delay;
+        logger.debug(String.format(Locale.US, "Retry attempt %d in %.1f seconds", retries + 1, delay / 1000.0));
+
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.SEND_FIRST;
+        internalHandler.sendMessageDelayed(message, delay);
+    }
+
+    private void setSendWindowInternal(int sendWindow) {
+        this.sendWindow = Math.max(1, sendWindow);
+    }
+
+    private void setConnectedInternal(boolean connected) {
+        if (this.connected == connected) {
+            return;
+        }
+
+        this.connected = connected;
+        if (!connected) {
+            logger.debug("Connectivity lost, package handler stops sending");
+            return;
+        }
+
+        // the failures were most likely caused by the missing connection
+        logger.debug("Connectivity restored, package handler resumes sending");
+        retryAt = 0;
         sendFirstInternal();
     }
 
+    private void setCompressionInternal(boolean compression) {
+        this.compression = compression;
+        for (IRequestHandler requestHandler : requestHandlers) {
+            requestHandler.setCompression(compression);
+        }
+    }
+
+    private void flushInternal(int generation) {
+        if (generation != flushGeneration) {
+            return; // resumed or paused in the meantime
+        }
+
+        if (flushing == 0) {
+            for (IRequestHandler requestHandler : requestHandlers) {
+                requestHandler.setHighPriority(true);
+            }
+        }
+        flushing = generation;
+        logger.verbose(String.format(Locale.US, "Flushing %d packages", packageQueue.size()));
+        sendFirstInternal();
+    }
+
+    private void flushDeadlineInternal(int generation) {
+        if (flushing != generation) {
+            return;
+        }
+
+        logger.verbose("Flush deadline expired");
+        endFlushInternal();
+    }
+
+    // end the flush when the queue is empty or it was cancelled
+    private void checkFlushInternal() {
+        if (flushing == 0) {
+            return;
+        }
+
+        if (flushing != flushGeneration || packageQueue.isEmpty()) {
+            endFlushInternal();
+        }
+    }
+
+    private void endFlushInternal() {
+        // only pause if nobody resumed or paused since the flush started
+        if (flushing == flushGeneration) {
+            paused = true;
+            logger.debug("Finished flushing, package handler is paused");
+        }
+
+        flushing = 0;
+        for (IRequestHandler requestHandler : requestHandlers) {
+            requestHandler.setHighPriority(false);
+        }
+    }
+
+    private void teardownInternal(CountDownLatch released) {
+        paused = true;
+
+        // the responses of the current requests still have to be handled
+        if (!inFlight.isEmpty() || null != sendingBatch) {
+            Message message = Message.obtain();
+            message.arg1 = InternalHandler.TEARDOWN;
+            message.obj = released;
+            internalHandler.sendMessageDelayed(message, TEARDOWN_RETRY_INTERVAL);
+            return;
+        }
+
+        for (IRequestHandler requestHandler : requestHandlers) {
+            requestHandler.teardown();
+        }
+        connectivityMonitor.stop();
+
+        // the queue is on disk, drop it and the messages that are still queued
+        packageQueue = null;
+        pendingPackages = 0;
+        internalHandler.packageHandlerReference.clear();
+        executorProvider.releaseLooper(IExecutorProvider.PACKAGE_HANDLER, internalHandler.getLooper());
+        logger.debug("Package handler released");
+        if (null != released) {
+            released.countDown();
+        }
+    }
+
+    // a package handed to one of the request handlers
+    private static final class InFlight {
+        private final ActivityPackage activityPackage;
+        private final int             slot;
+        private       boolean         finished;  // the response arrived
+        private       boolean         delivered; // and the package can be removed
+
+        private InFlight(ActivityPackage activityPackage, int slot) {
+            this.activityPackage = activityPackage;
+            this.slot = slot;
+        }
+    }
+
     private void readPackageQueue() {
         if (dropOfflineActivities) {
             packageQueue = new ArrayList<ActivityPackage>();
@@ -229,6 +738,7 @@ public class PackageHandler extends HandlerThread implements IPackageHandler {
                 List<ActivityPackage> packageQueue = (List<ActivityPackage>) object;
                 logger.debug(String.format(Locale.US, "Package handler read %d packages", packageQueue.size()));
                 this.packageQueue = packageQueue;
+                pendingPackages = packageQueue.size();
                 return;
             } catch (ClassNotFoundException e) {
                 logger.error("Failed to find package queue class");
@@ -0,0 +1,113 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Known parameters of an activity package
+ *
+ * Each parameter owns a slot in either the number or the string array of
+ * the package. Numbers are kept as they are and only formatted when the
+ * parameters are requested, see ActivityPackage.getParameters, or written
+ * straight into the body, see ActivityPackage.getBody.
+ */
+public enum PackageParameter {
+    // general
+    CREATED_AT("created_at", Type.DATE),
+    APP_TOKEN("app_token", Type.STRING),
+    MAC_SHA1("mac_sha1", Type.STRING),
+    MAC_MD5("mac_md5", Type.STRING),
+    ANDROID_ID("android_id", Type.STRING),
+    ANDROID_UUID("android_uuid", Type.STRING),
+    FB_ID("fb_id", Type.STRING),
+    ENVIRONMENT("environment", Type.STRING),
+    GPS_ADID("gps_adid", Type.STRING),
+
+    // sessions
+    SESSION_COUNT("session_count", Type.INT),
+    SUBSESSION_COUNT("subsession_count", Type.INT),
+    SESSION_LENGTH("session_length", Type.DURATION),
+    TIME_SPENT("time_spent", Type.DURATION),
+    LAST_INTERVAL("last_interval", Type.DURATION),
+    DEFAULT_TRACKER("default_tracker", Type.STRING),
+    REFERRER(Constants.REFERRER, Type.STRING),
+
+    // events
+    EVENT_COUNT("event_count", Type.INT),
+    EVENT_TOKEN("event_token", Type.STRING),
+    PARAMS("params", Type.STRING),
+    AMOUNT("amount", Type.INT), // in tenths of a cent
+
+    // reattributions
+    DEEPLINK_PARAMETERS("deeplink_parameters", Type.STRING);
+
+    public enum Type {
+        STRING, INT, DURATION, DATE
+    }
+
+    static final int                NUMBER_SLOTS;
+    static final int                STRING_SLOTS;
+    static final PackageParameter[] BY_KEY; // the order of the parameters in the body
+
+    static {
+        int numbers = 0;
+        int strings = 0;
+        for (PackageParameter parameter : values()) {
+            if (Type.STRING == parameter.type) {
+                parameter.slot = strings++;
+            } else {
+                parameter.slot = numbers++;
+            }
+        }
+        NUMBER_SLOTS = numbers;
+        STRING_SLOTS = strings;
+
+        BY_KEY = values();
+        Arrays.sort(BY_KEY, new Comparator<PackageParameter>() {
+            @Override
+            public int compare(PackageParameter first, PackageParameter second) {
+                return first.key.compareTo(second.key);
+            }
+        });
+    }
+
+    private final String key;
+    private final Type   type;
+    private       int    slot;
+
+    private PackageParameter(String key, Type type) {
+        this.key = key;
+        this.type = type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    // formats a number the way it is sent
+    String format(long value) {
+        switch (type) {
+        case DATE:     return Util.dateFormat(value);
+        case DURATION: return Long.toString((value + 500) / 1000);
+        default:       return Long.toString(value);
+        }
+    }
+
+    // writes a number the way it is sent, dates are the only ones formatted as text
+    void write(FormEncoder encoder, long value) throws IOException {
+        switch (type) {
+        case DATE:     encoder.write(key, Util.dateFormat(value)); break;
+        case DURATION: encoder.write(key, (value + 500) / 1000); break;
+        default:       encoder.write(key, value); break;
+        }
+    }
+}
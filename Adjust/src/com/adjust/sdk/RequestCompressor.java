@@ -0,0 +1,81 @@
+package com.adjust.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/*
+ * Deflates request bodies with a preset dictionary
+ *
+ * The bodies repeat the same keys and value fragments on every request,
+ * so the dictionary holds the keys of all package parameters in the order
+ * they appear in a body, with typical values after some of them. The
+ * output is in zlib format, its header carries the adler32 checksum of
+ * the dictionary so the server can tell which dictionary was used.
+ * Not thread safe, each request handler owns one compressor.
+ */
+public class RequestCompressor {
+    private static final int    BUFFER_SIZE = 1024;
+    private static final byte[] DICTIONARY  = buildDictionary();
+
+    private final Deflater deflater;
+    private final byte[]   buffer;
+
+    public RequestCompressor() {
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    public static byte[] getDictionary() {
+        return DICTIONARY.clone();
+    }
+
+    public byte[] compress(byte[] content) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(content);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    // release the native memory of the deflater
+    public void end() {
+        deflater.end();
+    }
+
+    // deflate prefers the end of the dictionary, so the most common strings come last
+    private static byte[] buildDictionary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("/reattribute /revenue /event /startup ");
+        builder.append("tracker_token=&environment=production&environment=sandbox&");
+
+        PackageParameter[] parameters = PackageParameter.values();
+        String[] keys = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            keys[i] = parameters[i].getKey();
+        }
+        Arrays.sort(keys); // the order of the body
+
+        for (String key : keys) {
+            builder.append(key).append('=');
+            if (PackageParameter.CREATED_AT.getKey().equals(key)) {
+                builder.append("201");
+            }
+            builder.append('&');
+        }
+        builder.append("%3A00Z%2B0&sent_at=201");
+
+        try {
+            return builder.toString().getBytes(Constants.ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return builder.toString().getBytes();
+        }
+    }
+}
@@ -9,53 +9,54 @@
 
 package com.adjust.sdk;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.json.JSONException;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-
-public class RequestHandler extends HandlerThread implements IRequestHandler {
-    private static final int CONNECTION_TIMEOUT = Constants.ONE_MINUTE;
-    private static final int SOCKET_TIMEOUT     = Constants.ONE_MINUTE;
-
-    private InternalHandler internalHandler;
-    private IPackageHandler packageHandler;
-    private HttpClient      httpClient;
-    private Logger          logger;
+import android.os.Process;
+import android.os.SystemClock;
+
+public class RequestHandler implements IRequestHandler {
+    private static final int    MIN_SAMPLES    = 20; // before the timeout follows the latencies
+    private static final double TIMEOUT_FACTOR = 3.0; // times the p99 latency
+    private static final byte[] EMPTY_BODY     = new byte[0];
+
+    private static final String FORM_CONTENT_TYPE  = "application/x-www-form-urlencoded";
+    private static final String BATCH_CONTENT_TYPE = "text/plain; charset=" + Constants.ENCODING;
+
+    private InternalHandler   internalHandler;
+    private IPackageHandler   packageHandler;
+    private IExecutorProvider executorProvider;
+    private IHttpTransport    httpTransport;
+    private LatencyHistogram  latencies;
+    private int               timeout; // for connecting and for each read
+    private RequestCompressor compressor; // null unless compression is enabled
+    private FormEncoder       formEncoder;
+    private Logger            logger;
+    private Integer           lowPriority; // priority of the thread before it was raised
 
     public RequestHandler(IPackageHandler packageHandler) {
-        super(Constants.LOGTAG, MIN_PRIORITY);
-        setDaemon(true);
-        start();
+        this.executorProvider = AdjustFactory.getExecutorProvider();
+        Looper looper = executorProvider.getLooper(IExecutorProvider.REQUEST_HANDLER);
 
         this.logger = AdjustFactory.getLogger();
-        this.internalHandler = new InternalHandler(getLooper(), this);
+        this.internalHandler = new InternalHandler(looper, this);
 
         this.packageHandler = packageHandler;
+        this.formEncoder = new FormEncoder();
 
         Message message = Message.obtain();
         message.arg1 = InternalHandler.INIT;
@@ -71,9 +72,48 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
         internalHandler.sendMessage(message);
     }
 
+    // send several packages in one request
+    @Override
+    public void sendBatch(List<ActivityPackage> packages) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.SEND_BATCH;
+        message.obj = packages;
+        internalHandler.sendMessage(message);
+    }
+
+    // raise the priority of the sending thread while flushing in the background
+    @Override
+    public void setHighPriority(boolean highPriority) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.PRIORITY;
+        message.arg2 = highPriority ? 1 : 0;
+        internalHandler.sendMessage(message);
+    }
+
+    // deflate request bodies above the compression threshold
+    @Override
+    public void setCompression(boolean compression) {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.COMPRESSION;
+        message.arg2 = compression ? 1 : 0;
+        internalHandler.sendMessage(message);
+    }
+
+    // release the thread and the connections after the pending requests
+    @Override
+    public void teardown() {
+        Message message = Message.obtain();
+        message.arg1 = InternalHandler.TEARDOWN;
+        internalHandler.sendMessage(message);
+    }
+
     private static final class InternalHandler extends Handler {
-        private static final int INIT = 72401;
-        private static final int SEND = 72400;
+        private static final int INIT        = 72401;
+        private static final int SEND        = 72400;
+        private static final int PRIORITY    = 72402;
+        private static final int TEARDOWN    = 72403;
+        private static final int SEND_BATCH  = 72404;
+        private static final int COMPRESSION = 72405;
 
         private final WeakReference<RequestHandler> requestHandlerReference;
 
@@ -99,22 +139,68 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
                     ActivityPackage activityPackage = (ActivityPackage) message.obj;
                     requestHandler.sendInternal(activityPackage);
                     break;
+                case PRIORITY:
+                    requestHandler.setHighPriorityInternal(message.arg2 == 1);
+                    break;
+                case TEARDOWN:
+                    requestHandler.teardownInternal();
+                    break;
+                case COMPRESSION:
+                    requestHandler.setCompressionInternal(message.arg2 == 1);
+                    break;
+                case SEND_BATCH:
+                    @SuppressWarnings("unchecked")
+                    List<ActivityPackage> packages = (List<ActivityPackage>) message.obj;
+                    requestHandler.sendBatchInternal(packages);
+                    break;
             }
         }
     }
 
     private void initInternal() {
-        HttpParams httpParams = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParams, CONNECTION_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(httpParams, SOCKET_TIMEOUT);
-        httpClient = AdjustFactory.getHttpClient(httpParams);
+        latencies = new LatencyHistogram();
+        timeout = (int) AdjustFactory.getRequestTimeoutMax();
+        httpTransport = AdjustFactory.getHttpTransport(timeout, timeout);
+    }
+
+    private void teardownInternal() {
+        httpTransport.shutdown();
+        setCompressionInternal(false);
+
+        // drop the messages that are still queued
+        internalHandler.requestHandlerReference.clear();
+        executorProvider.releaseLooper(IExecutorProvider.REQUEST_HANDLER, internalHandler.getLooper());
+    }
+
+    private void setHighPriorityInternal(boolean highPriority) {
+        int tid = Process.myTid();
+        if (highPriority) {
+            if (null == lowPriority) {
+                lowPriority = Process.getThreadPriority(tid);
+            }
+            Process.setThreadPriority(tid, Process.THREAD_PRIORITY_DEFAULT);
+        } else if (null != lowPriority) {
+            Process.setThreadPriority(tid, lowPriority);
+            lowPriority = null;
+        }
+    }
+
+    private void setCompressionInternal(boolean compression) {
+        if (compression && null == compressor) {
+            compressor = new RequestCompressor();
+        } else if (!compression && null != compressor) {
+            compressor.end();
+            compressor = null;
+        }
     }
 
     private void sendInternal(ActivityPackage activityPackage) {
         try {
-            HttpUriRequest request = getRequest(activityPackage);
-            HttpResponse response = httpClient.execute(request);
-            requestFinished(response, activityPackage);
+            String url = AdjustFactory.getBaseUrl() + activityPackage.getPath();
+            Map<String, String> headers = getHeaders(activityPackage);
+            byte[] content = compress(getContent(activityPackage), headers);
+            HttpResult result = post(url, headers, FORM_CONTENT_TYPE, content);
+            requestFinished(result, activityPackage);
         } catch (UnsupportedEncodingException e) {
             sendNextPackage(activityPackage, "Failed to encode parameters", e);
         } catch (ClientProtocolException e) {
@@ -128,10 +214,190 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
         }
     }
 
-    private void requestFinished(HttpResponse response, ActivityPackage activityPackage) {
-        int statusCode = response.getStatusLine().getStatusCode();
-        String responseString = parseResponse(response);
-        ResponseData responseData = ResponseData.fromJson(responseString);
+    private void sendBatchInternal(List<ActivityPackage> packages) {
+        // packages that fail to encode are left out of the request and dropped
+        List<ActivityPackage> droppedPackages = new ArrayList<ActivityPackage>();
+        try {
+            byte[] batchContent = getBatchContent(packages, droppedPackages);
+            if (droppedPackages.size() == packages.size()) {
+                packageHandler.finishedBatch(droppedPackages);
+                return;
+            }
+
+            String url = AdjustFactory.getBaseUrl() + Constants.BATCH_PATH;
+            Map<String, String> headers = getHeaders(packages.get(0));
+            byte[] content = compress(batchContent, headers);
+            HttpResult result = post(url, headers, BATCH_CONTENT_TYPE, content);
+            batchFinished(result, packages, droppedPackages);
+        } catch (ClientProtocolException e) {
+            closeBatch(packages, droppedPackages, "Client protocol error", e);
+        } catch (SocketTimeoutException e) {
+            closeBatch(packages, droppedPackages, "Request timed out", e);
+        } catch (IOException e) {
+            closeBatch(packages, droppedPackages, "Request failed", e);
+        } catch (Throwable e) {
+            dropBatch(packages, droppedPackages, "Runtime exception", e);
+        }
+    }
+
+    private HttpResult post(String url, Map<String, String> headers, String contentType, byte[] content) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpResult result;
+        try {
+            result = httpTransport.post(url, headers, contentType, content);
+        } catch (SocketTimeoutException e) {
+            // counts as at least the timeout, so that it grows again on slow links
+            addLatency(SystemClock.elapsedRealtime() - start);
+            throw e;
+        }
+        addLatency(SystemClock.elapsedRealtime() - start);
+        return result;
+    }
+
+    // derive the timeout from the p99 latency, clamped to the configured range
+    private void addLatency(long latency) {
+        latencies.add(latency);
+        if (latencies.getCount() < MIN_SAMPLES) {
+            return;
+        }
+
+        long p99 = latencies.getPercentile(0.99);
+        long derived = (long) (p99 * TIMEOUT_FACTOR);
+        int newTimeout = (int) Math.max(AdjustFactory.getRequestTimeoutMin(),
+                Math.min(AdjustFactory.getRequestTimeoutMax(), derived));
+        if (newTimeout == timeout) {
+            return;
+        }
+
+        timeout = newTimeout;
+        httpTransport.setTimeouts(timeout, timeout);
+        logger.verbose(String.format(Locale.US, "Request timeout %d ms (p99 latency %d ms)", timeout, p99));
+    }
+
+    // the response holds one result per package, in the order they were sent
+    private void batchFinished(HttpResult batchResult, List<ActivityPackage> packages, List<ActivityPackage> droppedPackages) {
+        int statusCode = batchResult.getStatusCode();
+        if (HttpStatus.SC_OK != statusCode) {
+            String error = parseResponse(batchResult).getError();
+            String reasonString = String.format(Locale.US, "Status code %d (%s)", statusCode, error);
+            if (isClientError(statusCode)) {
+                // rejected as a whole, sending it again would not help
+                dropBatch(packages, droppedPackages, reasonString, null);
+            } else {
+                closeBatch(packages, droppedPackages, reasonString, null);
+            }
+            return;
+        }
+
+        // the batch was accepted, packages without a readable result count as sent
+        // like a single package with an unreadable response
+        List<ResponseData> results = new ArrayList<ResponseData>();
+        List<Integer> itemStatusCodes = new ArrayList<Integer>();
+        String parseError = null;
+        byte[] body = batchResult.getBody();
+        if (null == body) {
+            parseError = "Failed to parse response";
+        } else {
+            try {
+                ResponseParser parser = new ResponseParser(body);
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    results.add(parser.readObject());
+                    itemStatusCodes.add(parser.getStatus());
+                }
+                parser.end();
+            } catch (JSONException e) {
+                parseError = String.format("Failed to parse json response: %s", ResponseParser.preview(body));
+            }
+        }
+
+        List<ActivityPackage> ackedPackages = new ArrayList<ActivityPackage>();
+        int next = 0;
+        for (ActivityPackage activityPackage : packages) {
+            if (droppedPackages.contains(activityPackage)) {
+                ackedPackages.add(activityPackage);
+                continue;
+            }
+
+            int i = next++;
+            ResponseData responseData;
+            if (i < results.size()) {
+                responseData = results.get(i);
+                int itemStatusCode = itemStatusCodes.get(i);
+                if (HttpStatus.SC_OK == itemStatusCode) {
+                    responseData.setWasSuccess(true);
+                    logger.info(activityPackage.getSuccessMessage());
+                } else if (isClientError(itemStatusCode)) {
+                    // rejected, sending it again would not help
+                    logger.error(String.format("%s. (%s)", activityPackage.getFailureMessage(), responseData.getError()));
+                } else {
+                    retryPackage(activityPackage, String.format(Locale.US, "Status code %d (%s)", itemStatusCode, responseData.getError()));
+                    continue;
+                }
+            } else if (null != parseError) {
+                responseData = ResponseData.fromError(parseError);
+                logger.error(String.format("%s. (%s)", activityPackage.getFailureMessage(), parseError));
+            } else {
+                retryPackage(activityPackage, "Missing batch response");
+                continue;
+            }
+
+            packageHandler.finishedTrackingActivity(activityPackage, responseData);
+            ackedPackages.add(activityPackage);
+        }
+
+        packageHandler.finishedBatch(ackedPackages);
+    }
+
+    private boolean isClientError(int statusCode) {
+        return statusCode >= HttpStatus.SC_BAD_REQUEST && statusCode < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    // close the whole batch because the request failed, the packages are retried
+    private void closeBatch(List<ActivityPackage> packages, List<ActivityPackage> droppedPackages,
+            String message, Throwable throwable) {
+        final String reasonString = getReasonString(message, throwable);
+        logger.error(String.format(Locale.US, "Failed to send batch of %d packages. (%s) %s",
+                packages.size() - droppedPackages.size(), reasonString, packageHandler.getFailureMessage()));
+
+        for (ActivityPackage activityPackage : packages) {
+            if (droppedPackages.contains(activityPackage)) {
+                continue;
+            }
+            ResponseData responseData = ResponseData.fromError(reasonString);
+            responseData.setWillRetry(!packageHandler.dropsOfflineActivities());
+            packageHandler.finishedTrackingActivity(activityPackage, responseData);
+        }
+        packageHandler.finishedBatch(droppedPackages);
+    }
+
+    // drop the whole batch because sending it again would fail the same way
+    private void dropBatch(List<ActivityPackage> packages, List<ActivityPackage> droppedPackages,
+            String message, Throwable throwable) {
+        final String reasonString = getReasonString(message, throwable);
+        logger.error(String.format(Locale.US, "Failed to send batch of %d packages. (%s)",
+                packages.size() - droppedPackages.size(), reasonString));
+
+        for (ActivityPackage activityPackage : packages) {
+            if (!droppedPackages.contains(activityPackage)) {
+                packageHandler.finishedTrackingActivity(activityPackage, ResponseData.fromError(reasonString));
+            }
+        }
+        packageHandler.finishedBatch(packages);
+    }
+
+    // keep a single package of the batch for a later attempt
+    private void retryPackage(ActivityPackage activityPackage, String reasonString) {
+        logger.error(String.format("%s. (%s) %s", activityPackage.getFailureMessage(), reasonString, packageHandler.getFailureMessage()));
+
+        ResponseData responseData = ResponseData.fromError(reasonString);
+        responseData.setWillRetry(!packageHandler.dropsOfflineActivities());
+        packageHandler.finishedTrackingActivity(activityPackage, responseData);
+    }
+
+    private void requestFinished(HttpResult result, ActivityPackage activityPackage) {
+        int statusCode = result.getStatusCode();
+        ResponseData responseData = parseResponse(result);
 
         if (HttpStatus.SC_OK == statusCode) {
             // success
@@ -143,19 +409,19 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
         }
 
         packageHandler.finishedTrackingActivity(activityPackage, responseData);
-        packageHandler.sendNextPackage();
+        packageHandler.sendNextPackage(activityPackage);
     }
 
-    private String parseResponse(HttpResponse response) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            response.getEntity().writeTo(out);
-            out.close();
-            return out.toString().trim();
-        } catch (Exception e) {
-            logger.error(String.format("Failed to parse response (%s)", e));
-            return "Failed to parse response";
+    private ResponseData parseResponse(HttpResult result) {
+        byte[] body = result.getBody();
+        if (null == body) {
+            logger.error("Failed to parse response");
+            return ResponseData.fromError("Failed to parse response");
         }
+        if (result.isTruncated()) {
+            logger.warn(String.format(Locale.US, "Response was cut off after %d bytes", body.length));
+        }
+        return ResponseData.fromJson(body);
     }
 
     // close current package because it failed
@@ -168,18 +434,23 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
         ResponseData responseData = ResponseData.fromError(reasonString);
         responseData.setWillRetry(!packageHandler.dropsOfflineActivities());
         packageHandler.finishedTrackingActivity(activityPackage, responseData);
-        packageHandler.closeFirstPackage();
+        packageHandler.closeFirstPackage(activityPackage);
     }
 
     // send next package because the current package failed
     private void sendNextPackage(ActivityPackage activityPackage, String message, Throwable throwable) {
+        dropPackage(activityPackage, message, throwable);
+        packageHandler.sendNextPackage(activityPackage);
+    }
+
+    // the package failed in a way that sending it again would not fix
+    private void dropPackage(ActivityPackage activityPackage, String message, Throwable throwable) {
         final String failureMessage = activityPackage.getFailureMessage();
         final String reasonString = getReasonString(message, throwable);
         logger.error(String.format("%s. (%s)", failureMessage, reasonString));
 
         ResponseData responseData = ResponseData.fromError(reasonString);
         packageHandler.finishedTrackingActivity(activityPackage, responseData);
-        packageHandler.sendNextPackage();
     }
 
     private String getReasonString(String message, Throwable throwable) {
@@ -190,30 +461,82 @@ public class RequestHandler extends HandlerThread implements IRequestHandler {
         }
     }
 
-    private HttpUriRequest getRequest(ActivityPackage activityPackage) throws UnsupportedEncodingException {
-        String url = Constants.BASE_URL + activityPackage.getPath();
-        HttpPost request = new HttpPost(url);
+    private Map<String, String> getHeaders(ActivityPackage activityPackage) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("User-Agent", activityPackage.getUserAgent());
+        headers.put("Client-SDK", activityPackage.getClientSdk());
+        headers.put("Accept-Language", Locale.getDefault().getLanguage());
+        return headers;
+    }
 
-        String language = Locale.getDefault().getLanguage();
-        request.addHeader("User-Agent", activityPackage.getUserAgent());
-        request.addHeader("Client-SDK", activityPackage.getClientSdk());
-        request.addHeader("Accept-Language", language);
+    private byte[] getContent(ActivityPackage activityPackage) throws IOException {
+        // the body was encoded when the package was queued, only sent_at is new
+        byte[] body = activityPackage.getBody(formEncoder);
+        return formEncoder.append(body, "sent_at", Util.dateFormat(System.currentTimeMillis()));
+    }
+
+    // one line per package with its path and its form encoded body:
+    // /event app_token=...&sent_at=...
+    // packages that cannot be encoded are dropped and added to droppedPackages
+    private byte[] getBatchContent(List<ActivityPackage> packages, List<ActivityPackage> droppedPackages) throws IOException {
+        byte[] sentAt = formEncoder.append(EMPTY_BODY, "sent_at", Util.dateFormat(System.currentTimeMillis()));
+        List<byte[]> paths = new ArrayList<byte[]>(packages.size());
+        List<byte[]> bodies = new ArrayList<byte[]>(packages.size());
+        int length = 0;
+        for (ActivityPackage activityPackage : packages) {
+            byte[] path;
+            byte[] body;
+            try {
+                path = activityPackage.getPath().getBytes(Constants.ENCODING);
+                body = activityPackage.getBody(formEncoder);
+            } catch (IOException e) {
+                dropPackage(activityPackage, "Failed to encode parameters", e);
+                droppedPackages.add(activityPackage);
+                continue;
+            } catch (RuntimeException e) {
+                dropPackage(activityPackage, "Runtime exception", e);
+                droppedPackages.add(activityPackage);
+                continue;
+            }
 
-        List<NameValuePair> pairs = new ArrayList<NameValuePair>();
-        for (Map.Entry<String, String> entity : activityPackage.getParameters().entrySet()) {
-            NameValuePair pair = new BasicNameValuePair(entity.getKey(), entity.getValue());
-            pairs.add(pair);
+            paths.add(path);
+            bodies.add(body);
+            length += path.length + 1 + body.length + (body.length > 0 ? 1 : 0) + sentAt.length + 1;
         }
 
-        long now = System.currentTimeMillis();
-        String dateString = Util.dateFormat(now);
-        NameValuePair sentAtPair = new BasicNameValuePair("sent_at", dateString);
-        pairs.add(sentAtPair);
+        // copied once into an array of the exact size
+        byte[] content = new byte[length];
+        int position = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            byte[] path = paths.get(i);
+            byte[] body = bodies.get(i);
+            System.arraycopy(path, 0, content, position, path.length);
+            position += path.length;
+            content[position++] = ' ';
+            System.arraycopy(body, 0, content, position, body.length);
+            position += body.length;
+            if (body.length > 0) {
+                content[position++] = '&';
+            }
+            System.arraycopy(sentAt, 0, content, position, sentAt.length);
+            position += sentAt.length;
+            content[position++] = '\n';
+        }
+        return content;
+    }
 
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(pairs);
-        entity.setContentType(URLEncodedUtils.CONTENT_TYPE);
-        request.setEntity(entity);
+    // deflate the content if it is long enough and gets shorter
+    private byte[] compress(byte[] content, Map<String, String> headers) {
+        if (null == compressor || content.length < AdjustFactory.getCompressionThreshold()) {
+            return content;
+        }
+
+        byte[] compressed = compressor.compress(content);
+        if (compressed.length >= content.length) {
+            return content;
+        }
 
-        return request;
+        headers.put("Content-Encoding", "deflate");
+        return compressed;
     }
 }
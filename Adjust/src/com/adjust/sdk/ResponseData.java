@@ -4,9 +4,6 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.text.TextUtils;
 
 /*
@@ -69,20 +66,18 @@ public class ResponseData {
     private String trackerToken;
     private String trackerName;
 
-    public static ResponseData fromJson(String jsonString) {
-        try {
-            ResponseData data = new ResponseData();
-            JSONObject jsonObject = new JSONObject(jsonString);
+    public static ResponseData fromJson(byte[] body) {
+        return ResponseParser.parse(body);
+    }
 
-            data.error = jsonObject.optString("error", null);
-            data.trackerToken = jsonObject.optString("tracker_token", null);
-            data.trackerName = jsonObject.optString("tracker_name", null);
+    public static ResponseData fromFields(String error, String trackerToken, String trackerName) {
+        ResponseData data = new ResponseData();
 
-            return data;
-        } catch (JSONException e) {
-            String error = String.format("Failed to parse json response: %s", jsonString.trim());
-            return ResponseData.fromError(error);
-        }
+        data.error = error;
+        data.trackerToken = trackerToken;
+        data.trackerName = trackerName;
+
+        return data;
     }
 
     public static ResponseData fromError(String error) {
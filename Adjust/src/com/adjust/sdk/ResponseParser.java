@@ -0,0 +1,332 @@
+package com.adjust.sdk;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+
+/*
+ * Reads the fields the SDK needs from a json response
+ *
+ * Walks the bytes of the body without decoding it into a string or
+ * building a JSONObject. Only error, tracker_token and tracker_name, and
+ * the status of batch items, are kept. Everything else is skipped without
+ * being decoded. Nesting is limited so that a hostile body cannot
+ * overflow the stack.
+ */
+public class ResponseParser {
+    private static final int MAX_DEPTH   = 32;
+    private static final int MAX_PREVIEW = 256; // bytes of an unparsable body shown in errors
+
+    private final byte[]        input;
+    private final StringBuilder builder; // reused for every key and value
+    private int                 position;
+    private boolean             firstItem;
+    private int                 status; // of the last object read, 0 if it had none
+
+    public ResponseParser(byte[] input) {
+        this.input = input;
+        this.builder = new StringBuilder();
+    }
+
+    // the response of a single request
+    public static ResponseData parse(byte[] body) {
+        ResponseParser parser = new ResponseParser(body);
+        try {
+            ResponseData responseData = parser.readObject();
+            parser.end();
+            return responseData;
+        } catch (JSONException e) {
+            String error = String.format("Failed to parse json response: %s", preview(body));
+            return ResponseData.fromError(error);
+        }
+    }
+
+    // the start of the body, for error messages
+    public static String preview(byte[] body) {
+        int length = Math.min(body.length, MAX_PREVIEW);
+        try {
+            return new String(body, 0, length, Constants.ENCODING).trim();
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    public ResponseData readObject() throws JSONException {
+        String error = null;
+        String trackerToken = null;
+        String trackerName = null;
+        status = 0;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readString(true);
+                expect(':');
+                if ("error".contentEquals(builder)) {
+                    error = readOptionalString();
+                } else if ("tracker_token".contentEquals(builder)) {
+                    trackerToken = readOptionalString();
+                } else if ("tracker_name".contentEquals(builder)) {
+                    trackerName = readOptionalString();
+                } else if ("status".contentEquals(builder)) {
+                    status = readInt();
+                } else {
+                    skipValue(1);
+                }
+            } while (consume(','));
+            expect('}');
+        }
+
+        return ResponseData.fromFields(error, trackerToken, trackerName);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void beginArray() throws JSONException {
+        expect('[');
+        firstItem = true;
+    }
+
+    // whether another item follows in the array
+    public boolean hasNext() throws JSONException {
+        if (consume(']')) {
+            return false;
+        }
+        if (!firstItem) {
+            expect(',');
+        }
+        firstItem = false;
+        return true;
+    }
+
+    // only whitespace may follow
+    public void end() throws JSONException {
+        skipWhitespace();
+        if (position < input.length) {
+            throw syntaxError("Trailing data");
+        }
+    }
+
+    private String readOptionalString() throws JSONException {
+        skipWhitespace();
+        if (peek() != '"') {
+            skipValue(1); // null or a value of another type
+            return null;
+        }
+        readString(true);
+        return builder.toString();
+    }
+
+    private int readInt() throws JSONException {
+        skipWhitespace();
+        int start = position;
+        boolean negative = consume('-');
+        long value = 0;
+        while (position < input.length && input[position] >= '0' && input[position] <= '9') {
+            value = Math.min(value * 10 + (input[position++] - '0'), Integer.MAX_VALUE);
+        }
+        if (position == start || position == start + 1 && negative) {
+            position = start;
+            skipValue(1); // not an integer
+            return 0;
+        }
+        skipNumberRest();
+        return (int) (negative ? -value : value);
+    }
+
+    // decodes the string into the builder if decode is set, otherwise it is only skipped
+    private void readString(boolean decode) throws JSONException {
+        skipWhitespace();
+        expect('"');
+        builder.setLength(0);
+        while (true) {
+            int b = next();
+            if (b == '"') {
+                return;
+            } else if (b == '\\') {
+                char c = readEscape();
+                if (decode) {
+                    builder.append(c);
+                }
+            } else if (b < 0x20) {
+                throw syntaxError("Control character in string");
+            } else if (b < 0x80) {
+                if (decode) {
+                    builder.append((char) b);
+                }
+            } else {
+                int codePoint = readUtf8(b);
+                if (decode) {
+                    builder.appendCodePoint(codePoint);
+                }
+            }
+        }
+    }
+
+    private char readEscape() throws JSONException {
+        int b = next();
+        switch (b) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) b;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int c = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    c = (c << 4) | digit;
+                }
+                return (char) c;
+            default:
+                throw syntaxError("Invalid escape");
+        }
+    }
+
+    // the rest of a multi byte sequence, b is its first byte
+    private int readUtf8(int b) throws JSONException {
+        int count;
+        int codePoint;
+        if (b >= 0xF8 || b < 0xC0) {
+            throw syntaxError("Invalid utf-8");
+        } else if (b >= 0xF0) {
+            count = 3;
+            codePoint = b & 0x07;
+        } else if (b >= 0xE0) {
+            count = 2;
+            codePoint = b & 0x0F;
+        } else {
+            count = 1;
+            codePoint = b & 0x1F;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int continuation = next();
+            if ((continuation & 0xC0) != 0x80) {
+                throw syntaxError("Invalid utf-8");
+            }
+            codePoint = (codePoint << 6) | (continuation & 0x3F);
+        }
+        if (codePoint > Character.MAX_CODE_POINT) {
+            throw syntaxError("Invalid utf-8");
+        }
+        return codePoint;
+    }
+
+    private void skipValue(int depth) throws JSONException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nested too deeply");
+        }
+
+        skipWhitespace();
+        int b = peek();
+        if (b == '"') {
+            readString(false);
+        } else if (b == '{') {
+            position++;
+            if (!consume('}')) {
+                do {
+                    readString(false);
+                    expect(':');
+                    skipValue(depth + 1);
+                } while (consume(','));
+                expect('}');
+            }
+        } else if (b == '[') {
+            position++;
+            if (!consume(']')) {
+                do {
+                    skipValue(depth + 1);
+                } while (consume(','));
+                expect(']');
+            }
+        } else if (b == 't') {
+            skipLiteral("true");
+        } else if (b == 'f') {
+            skipLiteral("false");
+        } else if (b == 'n') {
+            skipLiteral("null");
+        } else if (b == '-' || (b >= '0' && b <= '9')) {
+            position++;
+            skipNumberRest();
+        } else {
+            throw syntaxError("Unexpected character");
+        }
+    }
+
+    private void skipNumberRest() {
+        while (position < input.length) {
+            int b = input[position];
+            if ((b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                position++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void skipLiteral(String literal) throws JSONException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw syntaxError("Invalid literal");
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < input.length) {
+            int b = input[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    // consumes c if it is the next character after whitespace
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (position < input.length && input[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (!consume(c)) {
+            throw syntaxError(String.format("Expected '%c'", c));
+        }
+    }
+
+    private int peek() throws JSONException {
+        if (position >= input.length) {
+            throw syntaxError("Unexpected end");
+        }
+        return input[position] & 0xFF;
+    }
+
+    private int next() throws JSONException {
+        int b = peek();
+        position++;
+        return b;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(String.format("%s at %d", message, position));
+    }
+}
@@ -0,0 +1,387 @@
+package com.adjust.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Runs many http requests at once on a single thread
+ *
+ * Every request gets its own non-blocking socket channel, registered with
+ * one selector. The loop connects, writes the request and reads the
+ * response, then hands it to the callback of the request, all on its own
+ * thread. Requests are sent as HTTP/1.0 with Connection: close, so the
+ * response is never chunked. It ends when its Content-Length was read or
+ * when the server closes the connection. Only plain http is supported.
+ * Each request has its own deadline. Like the timeout of a blocking
+ * socket, the deadline moves forward whenever the channel makes progress.
+ * The loop is shared by all users and stops when the last one releases it.
+ */
+public class SelectorLoop implements Runnable {
+    public interface Callback {
+        public void completed(HttpResult result);
+
+        public void failed(IOException exception);
+    }
+
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+    private static final int BUFFER_SIZE      = 8 * 1024;
+
+    private static SelectorLoop shared;
+    private static int          users;
+
+    private final Selector                       selector;
+    private final Thread                         thread;
+    private final Queue<Exchange>                pending; // submitted, not registered yet
+    private final List<Exchange>                 active;
+    private final Map<String, InetSocketAddress> addresses; // resolved hosts
+    private final ByteBuffer                     readBuffer;
+    private long                                 addressesResolvedAt;
+    private volatile boolean                     running;
+
+    private SelectorLoop() throws IOException {
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<Exchange>();
+        active = new ArrayList<Exchange>();
+        addresses = new HashMap<String, InetSocketAddress>();
+        readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        running = true;
+
+        thread = new Thread(this, Constants.LOGTAG + " SelectorLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized SelectorLoop acquire() throws IOException {
+        if (null == shared || !shared.running) {
+            shared = new SelectorLoop();
+            users = 0;
+        }
+        users++;
+        return shared;
+    }
+
+    // the last user stops the loop, requests still in flight are dropped without callback
+    public static synchronized void release(SelectorLoop loop) {
+        if (loop != shared || --users > 0) {
+            return;
+        }
+        shared = null;
+        loop.running = false;
+        loop.selector.wakeup();
+    }
+
+    // an url that is not http is rejected with an IllegalArgumentException
+    public void submit(URL url, Map<String, String> headers, String contentType, byte[] body,
+            int connectionTimeout, int socketTimeout, Callback callback) throws IOException {
+        if (!"http".equals(url.getProtocol())) {
+            throw new IllegalArgumentException(String.format("Unsupported protocol %s", url.getProtocol()));
+        }
+
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + port;
+        String path = url.getFile().length() == 0 ? "/" : url.getFile();
+
+        StringBuilder head = new StringBuilder();
+        head.append(String.format(Locale.US, "POST %s HTTP/1.0\r\n", path));
+        head.append(String.format(Locale.US, "Host: %s\r\n", host));
+        head.append("Connection: close\r\n");
+        head.append(String.format(Locale.US, "Content-Type: %s\r\n", contentType));
+        head.append(String.format(Locale.US, "Content-Length: %d\r\n", body.length));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(String.format("%s: %s\r\n", header.getKey(), header.getValue()));
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(Constants.ENCODING);
+        ByteBuffer request = ByteBuffer.allocate(headBytes.length + body.length);
+        request.put(headBytes);
+        request.put(body);
+        request.flip();
+
+        Exchange exchange = new Exchange(url.getHost(), port, request, connectionTimeout, socketTimeout, callback);
+        if (!running) {
+            throw new IOException("Selector loop is not running");
+        }
+        pending.add(exchange);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                registerPending();
+                long wait = expireOverdue();
+                selector.select(wait);
+            } catch (IOException e) {
+                AdjustFactory.getLogger().error(String.format("Selector failed (%s)", e));
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                handle(key);
+            }
+        }
+
+        running = false;
+        for (Exchange exchange : new ArrayList<Exchange>(active)) {
+            close(exchange);
+        }
+        pending.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    private void registerPending() {
+        for (Exchange exchange = pending.poll(); null != exchange; exchange = pending.poll()) {
+            try {
+                exchange.channel = SocketChannel.open();
+                exchange.channel.configureBlocking(false);
+                active.add(exchange);
+                exchange.deadline = now() + exchange.connectionTimeout;
+
+                exchange.connected = exchange.channel.connect(resolve(exchange.host, exchange.port));
+                int interest = exchange.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+                exchange.channel.register(selector, interest, exchange);
+            } catch (IOException e) {
+                fail(exchange, e);
+            }
+        }
+    }
+
+    // fails the requests that are past their deadline and returns the wait until the next one
+    private long expireOverdue() {
+        long now = now();
+        long next = 0;
+        for (Exchange exchange : new ArrayList<Exchange>(active)) {
+            long remaining = exchange.deadline - now;
+            if (remaining <= 0) {
+                String what = exchange.connected ? "Read" : "Connect";
+                fail(exchange, new SocketTimeoutException(String.format("%s timed out", what)));
+            } else if (0 == next || remaining < next) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    private void handle(SelectionKey key) {
+        Exchange exchange = (Exchange) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            } else if (key.isConnectable()) {
+                if (!exchange.channel.finishConnect()) {
+                    return;
+                }
+                exchange.connected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                exchange.channel.write(exchange.request);
+                if (!exchange.request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                int count = exchange.channel.read(readBuffer);
+                if (count < 0) {
+                    complete(exchange);
+                    return;
+                }
+                readBuffer.flip();
+                if (exchange.consume(readBuffer)) {
+                    complete(exchange);
+                    return;
+                }
+            }
+            exchange.deadline = now() + exchange.socketTimeout;
+        } catch (IOException e) {
+            fail(exchange, e);
+        }
+    }
+
+    private void complete(Exchange exchange) {
+        close(exchange);
+        if (!exchange.headerRead) {
+            notifyFailed(exchange, new IOException("Connection closed before the response"));
+            return;
+        }
+
+        byte[] body = new byte[exchange.bodyLength];
+        System.arraycopy(exchange.body, 0, body, 0, exchange.bodyLength);
+        HttpResult result = new HttpResult(exchange.statusCode, body, exchange.truncated);
+        try {
+            exchange.callback.completed(result);
+        } catch (RuntimeException e) {
+            AdjustFactory.getLogger().error(String.format("Request callback failed (%s)", e));
+        }
+    }
+
+    private void fail(Exchange exchange, IOException exception) {
+        close(exchange);
+        notifyFailed(exchange, exception);
+    }
+
+    private void notifyFailed(Exchange exchange, IOException exception) {
+        try {
+            exchange.callback.failed(exception);
+        } catch (RuntimeException e) {
+            AdjustFactory.getLogger().error(String.format("Request callback failed (%s)", e));
+        }
+    }
+
+    private void close(Exchange exchange) {
+        active.remove(exchange);
+        if (null == exchange.channel) {
+            return;
+        }
+        try {
+            exchange.channel.close(); // also cancels its key
+        } catch (IOException e) {
+            // the channel is gone either way
+        }
+    }
+
+    // lookups block the loop, so the addresses are kept for a minute
+    private InetSocketAddress resolve(String host, int port) throws IOException {
+        long now = now();
+        if (now - addressesResolvedAt > Constants.ONE_MINUTE) {
+            addresses.clear();
+            addressesResolvedAt = now;
+        }
+
+        String key = host + ":" + port;
+        InetSocketAddress address = addresses.get(key);
+        if (null == address) {
+            address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new IOException(String.format("Unable to resolve host %s", host));
+            }
+            addresses.put(key, address);
+        }
+        return address;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // one request in flight and what was read of its response
+    private static final class Exchange {
+        private final String     host;
+        private final int        port;
+        private final ByteBuffer request;
+        private final int        connectionTimeout;
+        private final int        socketTimeout;
+        private final Callback   callback;
+
+        private SocketChannel         channel;
+        private long                  deadline;
+        private boolean               connected;
+        private boolean               headerRead;
+        private ByteArrayOutputStream header;
+        private int                   headerTail; // last four bytes of the header
+        private int                   statusCode;
+        private int                   contentLength;
+        private byte[]                body;
+        private int                   bodyLength;
+        private boolean               truncated;
+
+        private Exchange(String host, int port, ByteBuffer request,
+                int connectionTimeout, int socketTimeout, Callback callback) {
+            this.host = host;
+            this.port = port;
+            this.request = request;
+            this.connectionTimeout = connectionTimeout;
+            this.socketTimeout = socketTimeout;
+            this.callback = callback;
+            this.header = new ByteArrayOutputStream();
+            this.contentLength = -1;
+            this.body = new byte[0];
+        }
+
+        // whether the response is complete
+        private boolean consume(ByteBuffer input) throws IOException {
+            while (!headerRead && input.hasRemaining()) {
+                byte b = input.get();
+                header.write(b);
+                if (header.size() > MAX_HEADER_BYTES) {
+                    throw new IOException("Response header too long");
+                }
+                headerTail = (headerTail << 8) | (b & 0xFF);
+                if (headerTail == 0x0D0A0D0A) {
+                    parseHeader();
+                }
+            }
+
+            if (headerRead && input.hasRemaining()) {
+                int limit = Constants.MAX_RESPONSE_BYTES;
+                if (contentLength >= 0) {
+                    limit = Math.min(limit, contentLength);
+                }
+
+                int count = Math.min(input.remaining(), limit - bodyLength);
+                if (bodyLength + count > body.length) {
+                    byte[] larger = new byte[Math.min(Math.max(body.length * 2, bodyLength + count), limit)];
+                    System.arraycopy(body, 0, larger, 0, bodyLength);
+                    body = larger;
+                }
+                input.get(body, bodyLength, count);
+                bodyLength += count;
+
+                if (input.hasRemaining() && bodyLength == Constants.MAX_RESPONSE_BYTES) {
+                    truncated = true;
+                    return true;
+                }
+            }
+
+            return headerRead && contentLength >= 0 && bodyLength >= contentLength;
+        }
+
+        private void parseHeader() throws IOException {
+            String[] lines = header.toString(Constants.ENCODING).split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            try {
+                statusCode = Integer.parseInt(statusLine[1]);
+            } catch (RuntimeException e) {
+                throw new IOException(String.format("Invalid status line %s", lines[0]));
+            }
+
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                int colon = line.indexOf(':');
+                if (colon > 0 && "content-length".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                    try {
+                        contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException(String.format("Invalid content length %s", line));
+                    }
+                }
+            }
+
+            headerRead = true;
+            header = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.adjust.sdk;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Periodic task on a long-lived scheduler
+ *
+ * The scheduler is obtained once and kept for the lifetime of the owner,
+ * start and suspend only (re)schedule the task on it.
+ */
+public class TimerCycle {
+    private final ScheduledExecutorService scheduler;
+    private final Runnable                 command;
+    private final long                     initialDelay;
+    private final long                     cycleDelay;
+    private       ScheduledFuture<?>       waitingTask;
+
+    public TimerCycle(ScheduledExecutorService scheduler, Runnable command, long initialDelay, long cycleDelay) {
+        this.scheduler = scheduler;
+        this.command = command;
+        this.initialDelay = initialDelay;
+        this.cycleDelay = cycleDelay;
+    }
+
+    // schedule the task unless it is already running
+    public synchronized void start() {
+        if (waitingTask != null) {
+            return;
+        }
+
+        waitingTask = scheduler.scheduleWithFixedDelay(command, initialDelay, cycleDelay, TimeUnit.MILLISECONDS);
+    }
+
+    // cancel the task but keep the scheduler thread alive
+    public synchronized void suspend() {
+        if (waitingTask == null) {
+            return;
+        }
+
+        waitingTask.cancel(false);
+        waitingTask = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return waitingTask != null;
+    }
+}
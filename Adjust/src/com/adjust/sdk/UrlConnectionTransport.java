@@ -0,0 +1,90 @@
+package com.adjust.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/*
+ * Transport on HttpURLConnection
+ *
+ * The connections are pooled by the platform. A connection goes back to
+ * the pool once its response was read completely and its stream closed,
+ * so the next request to the same host skips the TCP and TLS handshakes.
+ * disconnect() would close it instead and is only called after errors
+ * and after responses that were too long to be read completely.
+ */
+public class UrlConnectionTransport implements IHttpTransport {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final byte[] buffer;
+    private int          connectionTimeout;
+    private int          socketTimeout;
+
+    public UrlConnectionTransport(int connectionTimeout, int socketTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public HttpResult post(String url, Map<String, String> headers, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(connectionTimeout);
+            connection.setReadTimeout(socketTimeout);
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Connection", "keep-alive");
+            connection.setRequestProperty("Content-Type", contentType);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int statusCode = connection.getResponseCode();
+            InputStream in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getErrorStream()
+                : connection.getInputStream();
+            HttpResult result = readBody(statusCode, in);
+            if (result.isTruncated()) {
+                connection.disconnect();
+            }
+            return result;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTimeouts(int connectionTimeout, int socketTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public void shutdown() {
+        // the pool is shared by the whole process, idle connections time out
+    }
+
+    private HttpResult readBody(int statusCode, InputStream in) throws IOException {
+        try {
+            return HttpResult.read(statusCode, in, buffer);
+        } finally {
+            if (null != in) {
+                in.close();
+            }
+        }
+    }
+}
@@ -27,7 +27,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.UUID;
 import java.util.regex.Matcher;
@@ -56,8 +55,7 @@ import com.google.android.gms.ads.identifier.AdvertisingIdClient;
  */
 public class Util {
 
-    private static SimpleDateFormat dateFormat;
-    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'Z";
+    private static final DateFormatter dateFormatter = new DateFormatter();
 
     protected static String getUserAgent(final Context context) {
         final Resources resources = context.getResources();
@@ -344,11 +342,9 @@ public class Util {
         return String.format("'%s'", string);
     }
 
+    // safe to call from any thread, see DateFormatter
     public static String dateFormat(long date) {
-        if (null == dateFormat) {
-            dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-        }
-        return dateFormat.format(date);
+        return dateFormatter.format(date);
     }
 
     public static String getGpsAdid(Context context) {
@@ -0,0 +1,42 @@
+package com.adjust.sdk.test;
+
+import com.adjust.sdk.IConnectivityMonitor;
+import com.adjust.sdk.IPackageHandler;
+
+public class MockConnectivityMonitor implements IConnectivityMonitor {
+
+    private MockLogger testLogger;
+    private String prefix = "ConnectivityMonitor ";
+    private IPackageHandler packageHandler;
+    private boolean connected;
+
+    public MockConnectivityMonitor(MockLogger testLogger) {
+        this.testLogger = testLogger;
+        this.connected = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void start(IPackageHandler packageHandler) {
+        testLogger.test(prefix + "start");
+        this.packageHandler = packageHandler;
+    }
+
+    @Override
+    public void stop() {
+        testLogger.test(prefix + "stop");
+        this.packageHandler = null;
+    }
+
+    // simulate a connectivity broadcast
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+        if (packageHandler != null) {
+            packageHandler.setConnected(connected);
+        }
+    }
+}
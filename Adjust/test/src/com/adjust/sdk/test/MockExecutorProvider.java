@@ -0,0 +1,53 @@
+package com.adjust.sdk.test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.adjust.sdk.IExecutorProvider;
+
+public class MockExecutorProvider implements IExecutorProvider {
+
+    private MockLogger testLogger;
+    private String prefix = "ExecutorProvider ";
+    private HandlerThread thread;
+    private ScheduledExecutorService scheduler;
+
+    public MockExecutorProvider(MockLogger testLogger) {
+        this.testLogger = testLogger;
+
+        // a single thread and scheduler shared by all components
+        thread = new HandlerThread("MockExecutorProvider");
+        thread.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    public Looper getLooper(String component) {
+        testLogger.test(prefix + "getLooper " + component);
+        return thread.getLooper();
+    }
+
+    @Override
+    public ScheduledExecutorService getScheduler(String component) {
+        testLogger.test(prefix + "getScheduler " + component);
+        return scheduler;
+    }
+
+    @Override
+    public void releaseLooper(String component, Looper looper) {
+        testLogger.test(prefix + "releaseLooper " + component);
+    }
+
+    @Override
+    public void releaseScheduler(String component, ScheduledExecutorService scheduler) {
+        testLogger.test(prefix + "releaseScheduler " + component);
+    }
+
+    public void shutdown() {
+        thread.quit();
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,193 @@
+package com.adjust.sdk.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// minimal http server on the loopback interface that answers every request the same way,
+// connections are kept alive until the client closes them
+public class MockHttpServer implements Runnable {
+
+    private MockLogger testLogger;
+    private String prefix = "HttpServer ";
+    private ServerSocket serverSocket;
+    private Thread thread;
+    private int responseStatus;
+    private String responseBody;
+    private long responseDelay;
+    private List<String> requestBodies;
+    private List<byte[]> requestContents;
+    private List<String> contentEncodings;
+    private int connectionCount;
+
+    public MockHttpServer(MockLogger testLogger) throws IOException {
+        this.testLogger = testLogger;
+        this.serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        this.responseStatus = 200;
+        this.responseBody = "{}";
+        this.requestBodies = new ArrayList<String>();
+        this.requestContents = new ArrayList<byte[]>();
+        this.contentEncodings = new ArrayList<String>();
+
+        thread = new Thread(this, "MockHttpServer");
+        thread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public synchronized void setResponse(int status, String body) {
+        this.responseStatus = status;
+        this.responseBody = body;
+    }
+
+    // wait before answering, like a stalled connection
+    public synchronized void setResponseDelay(long responseDelay) {
+        this.responseDelay = responseDelay;
+    }
+
+    public synchronized List<String> getRequestBodies() {
+        return new ArrayList<String>(requestBodies);
+    }
+
+    // the bodies as they were received, before any decoding
+    public synchronized List<byte[]> getRequestContents() {
+        return new ArrayList<byte[]>(requestContents);
+    }
+
+    // the content encoding header of each request, null if it was not set
+    public synchronized List<String> getContentEncodings() {
+        return new ArrayList<String>(contentEncodings);
+    }
+
+    // number of accepted connections, each one costs a handshake
+    public synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    connectionCount++;
+                }
+
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (handle(socket)) {
+                                // next request on the same connection
+                            }
+                            socket.close();
+                        } catch (IOException e) {
+                            // closed by the client
+                        }
+                    }
+                }, "MockHttpConnection").start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    // whether the connection stays open
+    private boolean handle(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        OutputStream output = socket.getOutputStream();
+
+        String requestLine = readLine(input);
+        if (requestLine.length() == 0) {
+            return false;
+        }
+
+        int contentLength = 0;
+        boolean expectContinue = false;
+        boolean keepAlive = true;
+        String contentEncoding = null;
+        for (String line = readLine(input); line.length() > 0; line = readLine(input)) {
+            String header = line.toLowerCase(Locale.US);
+            if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            } else if (header.startsWith("expect:") && header.contains("100-continue")) {
+                expectContinue = true;
+            } else if (header.startsWith("connection:") && header.contains("close")) {
+                keepAlive = false;
+            } else if (header.startsWith("content-encoding:")) {
+                contentEncoding = line.substring("content-encoding:".length()).trim();
+            }
+        }
+
+        if (expectContinue) {
+            output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("UTF-8"));
+            output.flush();
+        }
+
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+            int count = input.read(body, read, contentLength - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+
+        int status;
+        byte[] response;
+        long delay;
+        synchronized (this) {
+            requestBodies.add(new String(body, 0, read, "UTF-8"));
+            byte[] content = new byte[read];
+            System.arraycopy(body, 0, content, 0, read);
+            requestContents.add(content);
+            contentEncodings.add(contentEncoding);
+            status = responseStatus;
+            response = responseBody.getBytes("UTF-8");
+            delay = responseDelay;
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        String[] request = requestLine.split(" ");
+        testLogger.test(prefix + request[0] + " " + request[1]);
+
+        String header = String.format(Locale.US,
+                "HTTP/1.1 %d Mock\r\nContent-Type: application/json\r\nContent-Length: %d\r\nConnection: %s\r\n\r\n",
+                status, response.length, keepAlive ? "keep-alive" : "close");
+        output.write(header.getBytes("UTF-8"));
+        output.write(response);
+        output.flush();
+        return keepAlive;
+    }
+
+    private String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = input.read(); b >= 0 && b != '\n'; b = input.read()) {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+}
@@ -44,6 +44,12 @@ public class MockLogger implements Logger {
 
     }
 
+    // everything is recorded
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return true;
+    }
+
     private void logMessage(String message, Integer iLoglevel, String messagePrefix) {
         logBuffer.append(messagePrefix + message + System.getProperty("line.separator"));
         Log.d(messagePrefix, message);
@@ -2,6 +2,7 @@ package com.adjust.sdk.test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import com.adjust.sdk.ActivityPackage;
 import com.adjust.sdk.IPackageHandler;
@@ -12,6 +13,8 @@ public class MockPackageHandler implements IPackageHandler {
     private MockLogger testLogger;
     private String prefix = "PackageHandler ";
     public List<ActivityPackage> queue;
+    public boolean requestInFlight;
+    private CountDownLatch teardownLatch;
 
     public MockPackageHandler(MockLogger testLogger) {
         this.testLogger = testLogger;
@@ -30,15 +33,40 @@ public class MockPackageHandler implements IPackageHandler {
     }
 
     @Override
-    public void sendNextPackage() {
+    public void sendNextPackage(ActivityPackage sentPackage) {
         testLogger.test(prefix +  "sendNextPackage");
     }
 
     @Override
-    public void closeFirstPackage() {
+    public void closeFirstPackage(ActivityPackage sentPackage) {
         testLogger.test(prefix +  "closeFirstPackage");
     }
 
+    @Override
+    public void finishedBatch(List<ActivityPackage> ackedPackages) {
+        testLogger.test(prefix +  "finishedBatch " + ackedPackages.size());
+    }
+
+    @Override
+    public void setBatchUpload(boolean batchUpload) {
+        testLogger.test(prefix +  "setBatchUpload " + batchUpload);
+    }
+
+    @Override
+    public void setSendWindow(int sendWindow) {
+        testLogger.test(prefix +  "setSendWindow " + sendWindow);
+    }
+
+    @Override
+    public void setCompression(boolean compression) {
+        testLogger.test(prefix +  "setCompression " + compression);
+    }
+
+    @Override
+    public void setConnected(boolean connected) {
+        testLogger.test(prefix +  "setConnected " + connected);
+    }
+
     @Override
     public void pauseSending() {
         testLogger.test(prefix +  "pauseSending");
@@ -49,6 +77,32 @@ public class MockPackageHandler implements IPackageHandler {
         testLogger.test(prefix +  "resumeSending");
     }
 
+    @Override
+    public void flushAndPauseSending(long deadline) {
+        testLogger.test(prefix +  "flushAndPauseSending " + deadline);
+    }
+
+    @Override
+    public void teardown(CountDownLatch released) {
+        testLogger.test(prefix +  "teardown");
+
+        // a request in flight holds back the release until it finished
+        if (requestInFlight) {
+            teardownLatch = released;
+        } else {
+            released.countDown();
+        }
+    }
+
+    public void finishRequest() {
+        requestInFlight = false;
+        if (null != teardownLatch) {
+            testLogger.test(prefix +  "released");
+            teardownLatch.countDown();
+            teardownLatch = null;
+        }
+    }
+
     @Override
     public String getFailureMessage() {
         testLogger.debug(prefix +  "getFailureMessage");
@@ -60,6 +114,11 @@ public class MockPackageHandler implements IPackageHandler {
         return false; // TODO: implement?
     }
 
+    @Override
+    public boolean hasPendingPackages() {
+        return !queue.isEmpty();
+    }
+
     @Override
     public void finishedTrackingActivity(ActivityPackage activityPackage, ResponseData responseData) {
         // TODO: implement
@@ -1,5 +1,8 @@
 package com.adjust.sdk.test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.adjust.sdk.ActivityPackage;
 import com.adjust.sdk.IPackageHandler;
 import com.adjust.sdk.IRequestHandler;
@@ -22,15 +25,45 @@ public class MockRequestHandler implements IRequestHandler {
 
         // respond successfully to the package handler
         if (packageHandler != null && !errorNextSend) {
-            packageHandler.sendNextPackage();
+            packageHandler.sendNextPackage(pack);
+        }
+
+        if (packageHandler != null && errorNextSend) {
+            testLogger.test(packageHandler.getFailureMessage());
+            packageHandler.closeFirstPackage(pack);
+        }
+    }
+
+    @Override
+    public void sendBatch(List<ActivityPackage> packages) {
+        testLogger.test(prefix + "sendBatch " + packages.size());
+
+        // acknowledge all packages or none of them
+        if (packageHandler != null && !errorNextSend) {
+            packageHandler.finishedBatch(packages);
         }
 
         if (packageHandler != null && errorNextSend) {
             testLogger.test(packageHandler.getFailureMessage());
-            packageHandler.closeFirstPackage();
+            packageHandler.finishedBatch(new ArrayList<ActivityPackage>());
         }
     }
 
+    @Override
+    public void setHighPriority(boolean highPriority) {
+        testLogger.test(prefix + "setHighPriority " + highPriority);
+    }
+
+    @Override
+    public void setCompression(boolean compression) {
+        testLogger.test(prefix + "setCompression " + compression);
+    }
+
+    @Override
+    public void teardown() {
+        testLogger.test(prefix + "teardown");
+    }
+
     public void setPackageHandler(IPackageHandler packageHandler) {
         this.packageHandler = packageHandler;
     }
@@ -2,17 +2,24 @@ package com.adjust.sdk.test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.test.ActivityInstrumentationTestCase2;
 
 import com.adjust.sdk.ActivityHandler;
 import com.adjust.sdk.ActivityKind;
 import com.adjust.sdk.ActivityPackage;
 import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.AdjustLifecycleCallbacks;
 import com.adjust.sdk.Logger.LogLevel;
+import com.adjust.sdk.PackageParameter;
 
 public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTestActivity> {
 
@@ -46,9 +53,13 @@ public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTe
 
         AdjustFactory.setPackageHandler(null);
         AdjustFactory.setLogger(null);
+        AdjustFactory.setExecutorProvider(null);
         AdjustFactory.setTimerInterval(-1);
         AdjustFactory.setSessionInterval(-1);
         AdjustFactory.setSubsessionInterval(-1);
+        AdjustFactory.setTransitionGraceInterval(-1);
+        AdjustFactory.setFlushDeadline(-1);
+        AdjustFactory.setBackgroundDrainInterval(-1);
     }
 
     public void testFirstSession() {
@@ -155,9 +166,12 @@ public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTe
         activityHandler.trackSubsessionStart();
 
         // wait enough to be a new subsession, but not a new session
-        SystemClock.sleep(1500);
+        SystemClock.sleep(1000);
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(500);
 
         activityHandler.trackSubsessionStart();
+        activityHandler.trackSubsessionEnd();
         // wait enough to be a new session
         SystemClock.sleep(4000);
         activityHandler.trackSubsessionStart();
@@ -195,6 +209,50 @@ public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTe
             mockLogger.containsTestMessage("PackageHandler pauseSending"));
     }
 
+    public void testForegroundStart() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        // adjust the intervals for testing
+        AdjustFactory.setSessionInterval(2000);
+        AdjustFactory.setSubsessionInterval(100);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+
+        // a second start without an end, long after the last activity
+        SystemClock.sleep(3000);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        // the idle time was spent in the foreground, it is neither a session nor a subsession
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Session 2"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Started subsession"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+        assertEquals(1, mockPackageHandler.queue.size());
+
+        // so the next session starts after the end, not after the first session
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(1000);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Started subsession 2 of session 1"));
+        assertEquals(1, mockPackageHandler.queue.size());
+    }
+
     public void testEventsBuffered() {
         Context context = activity.getApplicationContext();
 
@@ -490,6 +548,8 @@ public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTe
 
         // set the timer for a shorter time for testing
         AdjustFactory.setTimerInterval(700);
+        // pause right away, so that each end followed by a start is visible
+        AdjustFactory.setTransitionGraceInterval(0);
 
         ActivityHandler activityHandler = new ActivityHandler(activity, "qwerty123456", "sandbox", "verbose", false);
 
@@ -573,6 +633,519 @@ public class TestActivityHandler extends ActivityInstrumentationTestCase2<UnitTe
             // */
     }
 
+    public void testTimerIdle() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        // set the timer for a shorter time for testing
+        AdjustFactory.setTimerInterval(500);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1500);
+
+        // the first session writes the activity state
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+
+        // the first session package is pending, so the timer tries to send it
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendFirstPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendFirstPackage"));
+
+        // the ticks that send do not write the activity state
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+
+        // simulate that the package was sent
+        mockPackageHandler.queue.clear();
+        SystemClock.sleep(1500);
+
+        // without pending packages the timer goes idle
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "No pending packages, timer going idle"));
+
+        // and writes the session length of its last tick, only once
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+    }
+
+    public void testCoalescedTransition() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        // adjust the intervals for testing
+        AdjustFactory.setSubsessionInterval(100);
+        AdjustFactory.setTransitionGraceInterval(500);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+
+        // an activity transition pauses and resumes within the grace interval
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(200);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        // the end was cancelled by the start
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Coalesced end and start of subsession"));
+
+        // the session accounting is the same as without coalescing
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Started subsession 2 of session 1"));
+
+        // sending was not paused, the state was only written by the end
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+
+        // a real end writes the state right away
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(200);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+
+        // and pauses sending once the grace interval expired
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+    }
+
+    public void testLifecycleCallbacks() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        // pause right away, so that each end is visible
+        AdjustFactory.setTransitionGraceInterval(0);
+
+        ActivityHandler activityHandler = new ActivityHandler(context);
+        AdjustLifecycleCallbacks lifecycleCallbacks = new AdjustLifecycleCallbacks(activityHandler);
+
+        // the first activity starts the session
+        lifecycleCallbacks.onActivityStarted(activity);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        // switching between activities is not tracked
+        lifecycleCallbacks.onActivityStarted(activity);
+        lifecycleCallbacks.onActivityStopped(activity);
+        lifecycleCallbacks.onActivityStarted(activity);
+        lifecycleCallbacks.onActivityStopped(activity);
+        SystemClock.sleep(1000);
+
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        // stopping the last activity ends the subsession
+        lifecycleCallbacks.onActivityStopped(activity);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+
+        // a stop without a start, the activity started before the callbacks were registered
+        lifecycleCallbacks.onActivityStopped(activity);
+        lifecycleCallbacks.onActivityStarted(activity);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        // does not throw off the count of the activities started afterwards
+        lifecycleCallbacks.onActivityStarted(activity);
+        lifecycleCallbacks.onActivityStopped(activity);
+        SystemClock.sleep(1000);
+
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        // only the first session package was created
+        assertEquals(1, mockPackageHandler.queue.size());
+    }
+
+    public void testFlushOnPause() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        AdjustFactory.setTransitionGraceInterval(0);
+        AdjustFactory.setFlushDeadline(3000);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+
+        // enable it after the initialization read the manifest
+        activityHandler.setFlushOnPause(true);
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Packages will get flushed on pause"));
+
+        // the session package is still pending when the app goes to the background
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(1000);
+
+        // the package handler flushes instead of pausing right away
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler flushAndPauseSending 3000"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+
+        // with an empty queue there is nothing to flush
+        mockPackageHandler.queue.clear();
+        activityHandler.trackSubsessionStart();
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+    }
+
+    public void testBackgroundDrain() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.edit().remove("AdjustLastBackgroundDrain").commit();
+
+        AdjustFactory.setTransitionGraceInterval(0);
+        AdjustFactory.setFlushDeadline(1000);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+
+        // enable it after the initialization read the manifest
+        activityHandler.setBackgroundDrain(true);
+
+        // a drain in the foreground is ignored
+        activityHandler.drainInBackground();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Skipping background drain in the foreground"));
+
+        // going to the background with a pending package schedules a drain
+        activityHandler.trackSubsessionEnd();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler pauseSending"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Scheduled background drain"));
+
+        // the alarm fired
+        activityHandler.drainInBackground();
+        SystemClock.sleep(2000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Draining package queue in the background"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler flushAndPauseSending 1000"));
+
+        // the package is still queued, so another drain is scheduled
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Scheduled background drain"));
+
+        // a second drain right away is rate limited
+        activityHandler.drainInBackground();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Background drain is rate limited"));
+
+        // but the next one is still scheduled, in case the alarm fired early
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Scheduled background drain"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler flushAndPauseSending"));
+
+        // a last drain in the future of the elapsed realtime is from before a reboot
+        long beforeReboot = SystemClock.elapsedRealtime() + 60 * 60 * 1000;
+        preferences.edit().putLong("AdjustLastBackgroundDrain", beforeReboot).commit();
+        activityHandler.drainInBackground();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Draining package queue in the background"));
+    }
+
+    public void testFullEventRing() throws Exception {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        MockExecutorProvider mockExecutorProvider = new MockExecutorProvider(mockLogger);
+        AdjustFactory.setExecutorProvider(mockExecutorProvider);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+
+        // block the session thread so that the ring fills up
+        final CountDownLatch blocked = new CountDownLatch(1);
+        new Handler(mockExecutorProvider.getLooper("Test")).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // two threads track more revenues than fit into the ring, the rest fall back to messages
+        final ActivityHandler tracker = activityHandler;
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        tracker.trackRevenue(producer * 1000 + i + 1, "abc123", null);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        blocked.countDown();
+        SystemClock.sleep(3000);
+
+        // the revenues of each thread were tracked in the order they were tracked in
+        assertEquals(401, mockPackageHandler.queue.size());
+        long[] last = { -1, -1 };
+        for (ActivityPackage revenuePackage : mockPackageHandler.queue.subList(1, 401)) {
+            long amountInCents = Long.parseLong(revenuePackage.getFormatted(PackageParameter.AMOUNT)) / 10;
+            int producer = (int) (amountInCents / 1000);
+            assertTrue(amountInCents + " after " + last[producer], amountInCents > last[producer]);
+            last[producer] = amountInCents;
+        }
+
+        mockExecutorProvider.shutdown();
+    }
+
+    public void testTrackEventAllocations() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+
+        // warm up the event ring and the message pool
+        for (int i = 0; i < 100; i++) {
+            activityHandler.trackEvent("abc123", null);
+        }
+        SystemClock.sleep(2000);
+
+        // count the allocations of the calling thread in the steady state
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 100; i++) {
+            activityHandler.trackEvent("abc123", null);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        SystemClock.sleep(2000);
+
+        // tracking an event without callback parameters does not allocate on the calling thread
+        assertEquals(mockLogger.toString(), 0, allocations);
+
+        // the session thread still allocates per event, for a package that is queued and persisted:
+        // the ActivityPackage and its slot arrays, the streams that write the activity state and the
+        // serialized state, and the formatted log messages if their level is enabled
+
+        // all events were tracked, 1 session + 200 events
+        assertEquals(mockLogger.toString(), 201, mockPackageHandler.queue.size());
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Event 200"));
+    }
+
+    public void testExecutorProvider() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        // inject threads owned by the host app
+        MockExecutorProvider mockExecutorProvider = new MockExecutorProvider(mockLogger);
+        AdjustFactory.setExecutorProvider(mockExecutorProvider);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(2000);
+
+        // the activity handler got its looper and scheduler from the provider
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ExecutorProvider getLooper ActivityHandler"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ExecutorProvider getScheduler ActivityHandler"));
+
+        // the first session was tracked on the supplied looper
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+        assertEquals(1, mockPackageHandler.queue.size());
+
+        // and the supplied scheduler fired the timer
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendFirstPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendFirstPackage"));
+
+        mockExecutorProvider.shutdown();
+    }
+
+    public void testTeardown() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        MockExecutorProvider mockExecutorProvider = new MockExecutorProvider(mockLogger);
+        AdjustFactory.setExecutorProvider(mockExecutorProvider);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+
+        // an event tracked right before the teardown is not lost
+        activityHandler.trackEvent("abc123", null);
+        activityHandler.teardown();
+        SystemClock.sleep(1000);
+
+        assertEquals(2, mockPackageHandler.queue.size());
+
+        // the package handler, the state and the threads were released
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler teardown"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Wrote activity state"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ExecutorProvider releaseScheduler ActivityHandler"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ExecutorProvider releaseLooper ActivityHandler"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Activity handler released"));
+
+        // the shared looper is still alive, but the released handler ignores it
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        // a new activity handler starts from the written state
+        activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Read activity state"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        mockExecutorProvider.shutdown();
+    }
+
+    public void testTeardownInFlight() {
+        Context context = activity.getApplicationContext();
+
+        // starting from a clean slate
+        mockLogger.test("Was AdjustActivityState deleted? " + ActivityHandler.deleteActivityState(context));
+
+        MockExecutorProvider mockExecutorProvider = new MockExecutorProvider(mockLogger);
+        AdjustFactory.setExecutorProvider(mockExecutorProvider);
+
+        ActivityHandler activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "First session"));
+
+        // the package handler still waits for the response of a request
+        mockPackageHandler.requestInFlight = true;
+        activityHandler.teardown();
+
+        // the next resume does not read the state while the old handlers still run
+        activityHandler = new ActivityHandler(activity);
+        activityHandler.trackSubsessionStart();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Activity handler released"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Waiting for the previous activity handler to be released"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Read activity state"));
+
+        // once the request finished, the new handler starts from the written state
+        mockPackageHandler.finishRequest();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler released"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Read activity state"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler resumeSending"));
+
+        mockExecutorProvider.shutdown();
+    }
+
     public void testOpenUrl() {
         Context context = activity.getApplicationContext();
 
@@ -0,0 +1,143 @@
+package com.adjust.sdk.test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.DateFormatter;
+
+public class TestDateFormatter extends ActivityInstrumentationTestCase2<UnitTestActivity> {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'Z";
+    private static final int    THREADS     = 4;
+    private static final int    DATES       = 20000;
+
+    private static final String NEW_YORK    = "America/New_York";
+    private static final String LORD_HOWE   = "Australia/Lord_Howe";
+    private static final String KOLKATA     = "Asia/Kolkata";
+
+    // instants where the offset of a zone changes, with the offsets before and after
+    private static final Object[][] TRANSITIONS = {
+        { NEW_YORK,  1394348400000L, "-0500", "-0400" }, // 2014-03-09 02:00 EST
+        { NEW_YORK,  1414908000000L, "-0400", "-0500" }, // 2014-11-02 02:00 EDT
+        { LORD_HOWE, 1396710000000L, "+1100", "+1030" }, // 2014-04-06 02:00, back by half an hour
+        { LORD_HOWE, 1412436600000L, "+1030", "+1100" }, // 2014-10-05 02:00, ahead by half an hour
+    };
+
+    protected MockLogger mockLogger;
+    protected TimeZone   defaultZone;
+
+    public TestDateFormatter() {
+        super(UnitTestActivity.class);
+    }
+
+    public TestDateFormatter(Class<UnitTestActivity> activityClass) {
+        super(activityClass);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mockLogger = new MockLogger();
+        AdjustFactory.setLogger(mockLogger);
+        defaultZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        TimeZone.setDefault(defaultZone);
+        AdjustFactory.setLogger(null);
+    }
+
+    public void testFormat() {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        DateFormatter dateFormatter = new DateFormatter();
+        Random random = new Random(1);
+
+        for (int i = 0; i < DATES; i++) {
+            long date = 1400000000000L + random.nextInt(Integer.MAX_VALUE);
+            assertEquals(simpleDateFormat.format(new Date(date)), dateFormatter.format(date));
+        }
+
+        // the same second returns the cached string
+        String text = dateFormatter.format(1400000000123L);
+        assertSame(text, dateFormatter.format(1400000000987L));
+    }
+
+    public void testTimeZones() {
+        String[] zones = { NEW_YORK, LORD_HOWE, KOLKATA };
+        for (String zone : zones) {
+            // new formatters pick up the changed default zone
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+            DateFormatter dateFormatter = new DateFormatter();
+            Random random = new Random(1);
+
+            for (int i = 0; i < DATES; i++) {
+                long date = 1400000000000L + random.nextInt(Integer.MAX_VALUE);
+                assertEquals(zone, simpleDateFormat.format(new Date(date)), dateFormatter.format(date));
+            }
+        }
+
+        TimeZone.setDefault(TimeZone.getTimeZone(KOLKATA));
+        assertTrue(new DateFormatter().format(1400000000000L).endsWith("+0530"));
+    }
+
+    public void testDaylightSavingTransitions() {
+        for (Object[] transition : TRANSITIONS) {
+            String zone = (String) transition[0];
+            long instant = (Long) transition[1];
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+            DateFormatter dateFormatter = new DateFormatter();
+
+            // every second of the hour around the transition, the minute caches change with the offset
+            for (long date = instant - 30 * 60 * 1000; date < instant + 30 * 60 * 1000; date += 1000) {
+                assertEquals(zone, simpleDateFormat.format(new Date(date)), dateFormatter.format(date));
+            }
+
+            String before = dateFormatter.format(instant - 1);
+            String after = dateFormatter.format(instant);
+            assertTrue(before, before.endsWith((String) transition[2]));
+            assertTrue(after, after.endsWith((String) transition[3]));
+        }
+    }
+
+    public void testThreads() throws InterruptedException {
+        final DateFormatter dateFormatter = new DateFormatter();
+        final AtomicInteger wrong = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+                    Random random = new Random(seed);
+                    for (int j = 0; j < DATES; j++) {
+                        // few distinct seconds, so that the threads race on the caches
+                        long date = 1400000000000L + random.nextInt(5000);
+                        if (!simpleDateFormat.format(new Date(date)).equals(dateFormatter.format(date))) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(0, wrong.get());
+    }
+}
@@ -0,0 +1,232 @@
+package com.adjust.sdk.test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.EventRing;
+
+public class TestEventRing extends ActivityInstrumentationTestCase2<UnitTestActivity> {
+
+    private static final int PRODUCERS           = 8;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+
+    protected MockLogger mockLogger;
+
+    public TestEventRing() {
+        super(UnitTestActivity.class);
+    }
+
+    public TestEventRing(Class<UnitTestActivity> activityClass) {
+        super(activityClass);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mockLogger = new MockLogger();
+        AdjustFactory.setLogger(mockLogger);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        AdjustFactory.setLogger(null);
+    }
+
+    public void testOfferPoll() {
+        EventRing ring = new EventRing(4);
+        EventRing.Event event = new EventRing.Event();
+
+        // an empty ring has nothing to poll
+        assertFalse(ring.poll(event));
+
+        assertTrue(ring.offer(false, "abc123", 0, null));
+        assertTrue(ring.offer(true, "def456", 4.5, null));
+        assertTrue(ring.offer(true, null, 1.0, null));
+        assertTrue(ring.offer(false, "ghi789", 0, null));
+
+        // the fifth event does not fit into the ring
+        assertFalse(ring.offer(false, "jkl012", 0, null));
+
+        // events come out in the order they were offered
+        assertTrue(ring.poll(event));
+        assertFalse(event.isRevenue());
+        assertEquals("abc123", event.getEventToken());
+
+        assertTrue(ring.poll(event));
+        assertTrue(event.isRevenue());
+        assertEquals("def456", event.getEventToken());
+        assertEquals("", 4.5, event.getAmountInCents(), 0.0);
+
+        // polling freed a slot for the next lap
+        assertTrue(ring.offer(false, "jkl012", 0, null));
+
+        assertTrue(ring.poll(event));
+        assertNull(event.getEventToken());
+        assertTrue(ring.poll(event));
+        assertEquals("ghi789", event.getEventToken());
+        assertTrue(ring.poll(event));
+        assertEquals("jkl012", event.getEventToken());
+        assertFalse(ring.poll(event));
+    }
+
+    public void testMark() {
+        EventRing ring = new EventRing(8);
+        EventRing.Event event = new EventRing.Event();
+
+        ring.offer(false, "abc123", 0, null);
+        ring.offer(false, "def456", 0, null);
+        int mark = ring.mark();
+        ring.offer(false, "ghi789", 0, null);
+
+        // only the events offered before the mark are drained
+        assertTrue(ring.poll(event, mark));
+        assertEquals("abc123", event.getEventToken());
+        assertTrue(ring.poll(event, mark));
+        assertEquals("def456", event.getEventToken());
+        assertFalse(ring.poll(event, mark));
+
+        // the rest is left for the next drain
+        assertTrue(ring.poll(event));
+        assertEquals("ghi789", event.getEventToken());
+    }
+
+    public void testProducers() throws InterruptedException {
+        final EventRing ring = new EventRing(256);
+        final int total = PRODUCERS * EVENTS_PER_PRODUCER;
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch consumed = new CountDownLatch(1);
+
+        // single consumer that checks the order of each producer
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EventRing.Event event = new EventRing.Event();
+                double[] lastSequence = new double[PRODUCERS];
+                Arrays.fill(lastSequence, -1);
+
+                int count = 0;
+                while (count < total) {
+                    if (!ring.poll(event)) {
+                        Thread.yield();
+                        continue;
+                    }
+
+                    int producer = Integer.parseInt(event.getEventToken());
+                    if (event.getAmountInCents() != lastSequence[producer] + 1) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    lastSequence[producer] = event.getAmountInCents();
+                    count++;
+                }
+                consumed.countDown();
+            }
+        });
+        consumer.start();
+
+        long[] latencies = runProducers(new Producer() {
+            @Override
+            public void produce(String token, int sequence) {
+                while (!ring.offer(false, token, sequence, null)) {
+                    Thread.yield(); // back off while the consumer catches up
+                }
+            }
+        }, "EventRing");
+
+        consumed.await();
+
+        assertEquals(mockLogger.toString(), 0, outOfOrder.get());
+        assertEquals(total, latencies.length);
+    }
+
+    public void testMessageQueueBaseline() throws InterruptedException {
+        final int total = PRODUCERS * EVENTS_PER_PRODUCER;
+        final CountDownLatch consumed = new CountDownLatch(total);
+
+        HandlerThread thread = new HandlerThread("MessageQueueBaseline");
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                consumed.countDown();
+            }
+        };
+
+        // the previous ingestion path, one message per event
+        runProducers(new Producer() {
+            @Override
+            public void produce(String token, int sequence) {
+                Message message = Message.obtain();
+                message.arg1 = sequence;
+                message.obj = token;
+                handler.sendMessage(message);
+            }
+        }, "MessageQueue");
+
+        consumed.await();
+        thread.quit();
+    }
+
+    private interface Producer {
+        void produce(String token, int sequence);
+    }
+
+    // runs the producer on all threads and logs calls per second and the p99 caller latency
+    private long[] runProducers(final Producer producer, String name) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[][] latencies = new long[PRODUCERS][EVENTS_PER_PRODUCER];
+        Thread[] threads = new Thread[PRODUCERS];
+
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int index = i;
+            final String token = Integer.toString(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long[] threadLatencies = latencies[index];
+                    for (int sequence = 0; sequence < EVENTS_PER_PRODUCER; sequence++) {
+                        long before = System.nanoTime();
+                        producer.produce(token, sequence);
+                        threadLatencies[sequence] = System.nanoTime() - before;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        long[] all = new long[PRODUCERS * EVENTS_PER_PRODUCER];
+        for (int i = 0; i < PRODUCERS; i++) {
+            System.arraycopy(latencies[i], 0, all, i * EVENTS_PER_PRODUCER, EVENTS_PER_PRODUCER);
+        }
+        Arrays.sort(all);
+
+        double callsPerSecond = all.length / (elapsed / 1e9);
+        long p99 = all[(int) (all.length * 0.99)];
+        mockLogger.test(String.format(Locale.US, "%s: %d producers, %.0f calls/s, p99 %d ns",
+                name, PRODUCERS, callsPerSecond, p99));
+
+        return all;
+    }
+}
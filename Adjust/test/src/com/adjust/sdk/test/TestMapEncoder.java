@@ -0,0 +1,204 @@
+package com.adjust.sdk.test;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONObject;
+
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Base64;
+
+import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.MapEncoder;
+
+public class TestMapEncoder extends ActivityInstrumentationTestCase2<UnitTestActivity> {
+
+    private static final int  MAPS        = 2000;
+    private static final int  RANDOM_MAPS = 20000;
+    private static final long RANDOM_SEED = 20140625L;
+
+    protected MockLogger mockLogger;
+
+    public TestMapEncoder() {
+        super(UnitTestActivity.class);
+    }
+
+    public TestMapEncoder(Class<UnitTestActivity> activityClass) {
+        super(activityClass);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mockLogger = new MockLogger();
+        AdjustFactory.setLogger(mockLogger);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        AdjustFactory.setLogger(null);
+    }
+
+    public void testEncoding() throws Exception {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("key", "value");
+        parameters.put("quotes", "\"a\\b/c\"");
+        parameters.put("control", "tab\tnew\nline\u0001");
+        parameters.put("unicode", "\u00e4\u20ac\ud83d\ude00");
+        parameters.put("null", null);
+
+        // same output as the previous JSONObject and Base64 encoding
+        String json = new JSONObject(parameters).toString();
+        String base64 = Base64.encodeToString(json.getBytes("UTF-8"), Base64.NO_WRAP);
+
+        MapEncoder encoder = new MapEncoder();
+        assertEquals(json, encoder.toJson(parameters));
+        assertEquals(base64, encoder.toBase64(parameters));
+
+        Map<String, String> empty = new LinkedHashMap<String, String>();
+        assertEquals("{}", encoder.toJson(empty));
+        assertEquals("e30=", encoder.toBase64(empty));
+    }
+
+    public void testRandomMaps() throws Exception {
+        // seeded, so that a failing map can be reproduced
+        Random random = new Random(RANDOM_SEED);
+        MapEncoder encoder = new MapEncoder();
+
+        for (int i = 0; i < RANDOM_MAPS; i++) {
+            Map<String, String> parameters = new LinkedHashMap<String, String>();
+            int size = random.nextInt(6);
+            for (int j = 0; j < size; j++) {
+                String value = random.nextInt(10) == 0 ? null : randomString(random);
+                parameters.put(randomString(random), value);
+            }
+
+            String json = new JSONObject(parameters).toString();
+            String base64 = Base64.encodeToString(json.getBytes("UTF-8"), Base64.NO_WRAP);
+            String message = String.format(Locale.US, "map %d: %s", i, json);
+
+            // every other map is encoded to base64 first, the other ones from their cached json
+            if (i % 2 == 0) {
+                assertEquals(message, json, encoder.toJson(parameters));
+                assertEquals(message, base64, encoder.toBase64(parameters));
+            } else {
+                assertEquals(message, base64, encoder.toBase64(parameters));
+                assertEquals(message, json, encoder.toJson(parameters));
+            }
+        }
+    }
+
+    // escaped and control characters, all utf-8 lengths, paired and unpaired surrogates
+    private String randomString(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int length = random.nextInt(13);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+                builder.append((char) (0x20 + random.nextInt(0x5F)));
+                break;
+            case 1:
+                builder.append(random.nextInt(8) == 0 ? (char) 0x7F : (char) random.nextInt(0x20));
+                break;
+            case 2:
+                builder.append("\"\\/".charAt(random.nextInt(3)));
+                break;
+            case 3:
+                builder.append((char) (0x80 + random.nextInt(0xD800 - 0x80)));
+                break;
+            case 4:
+                builder.append((char) (0xE000 + random.nextInt(0x2000)));
+                break;
+            case 5:
+                builder.append(Character.toChars(0x10000 + random.nextInt(0x100000)));
+                break;
+            case 6:
+                builder.append((char) (0xD800 + random.nextInt(0x400))); // high surrogate
+                break;
+            default:
+                builder.append((char) (0xDC00 + random.nextInt(0x400))); // low surrogate
+                break;
+            }
+        }
+        return builder.toString();
+    }
+
+    public void testCache() {
+        MapEncoder encoder = new MapEncoder();
+
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("key", "value");
+        String base64 = encoder.toBase64(parameters);
+
+        // an equal map reuses the encoded string
+        Map<String, String> equalParameters = new LinkedHashMap<String, String>();
+        equalParameters.put("key", "value");
+        assertSame(base64, encoder.toBase64(equalParameters));
+
+        // a changed map is encoded again
+        parameters.put("key", "other");
+        String changed = encoder.toBase64(parameters);
+        assertNotSame(base64, changed);
+        assertFalse(base64.equals(changed));
+    }
+
+    public void testInterleavedMaps() throws Exception {
+        MapEncoder encoder = new MapEncoder();
+
+        Map<String, String> first = new LinkedHashMap<String, String>();
+        first.put("key", "first");
+        Map<String, String> second = new LinkedHashMap<String, String>();
+        second.put("key", "second");
+        String firstJson = new JSONObject(first).toString();
+        String secondJson = new JSONObject(second).toString();
+
+        // the json of a map first encoded to base64, after another map was encoded
+        encoder.toBase64(first);
+        encoder.toBase64(second);
+        assertEquals(firstJson, encoder.toJson(first));
+        assertEquals(secondJson, encoder.toJson(second));
+
+        // and the other way around
+        Map<String, String> third = new LinkedHashMap<String, String>();
+        third.put("key", "third");
+        Map<String, String> fourth = new LinkedHashMap<String, String>();
+        fourth.put("key", "fourth");
+        String thirdBase64 = Base64.encodeToString(new JSONObject(third).toString().getBytes("UTF-8"), Base64.NO_WRAP);
+
+        encoder.toJson(third);
+        encoder.toJson(fourth);
+        assertEquals(thirdBase64, encoder.toBase64(third));
+    }
+
+    public void testBenchmark() throws Exception {
+        MapEncoder encoder = new MapEncoder();
+
+        // distinct maps, so that the cache does not help
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("user_id", "1234567890");
+        parameters.put("item", "sword of a thousand truths");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MAPS; i++) {
+            parameters.put("index", Integer.toString(i));
+            String json = new JSONObject(parameters).toString();
+            Base64.encodeToString(json.getBytes("UTF-8"), Base64.NO_WRAP);
+        }
+        long jsonObjectTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MAPS; i++) {
+            parameters.put("index", Integer.toString(i));
+            encoder.toBase64(parameters);
+        }
+        long encoderTime = System.nanoTime() - start;
+
+        mockLogger.test(String.format(Locale.US, "toBase64: JSONObject %d ns, MapEncoder %d ns per map",
+                jsonObjectTime / MAPS, encoderTime / MAPS));
+    }
+}
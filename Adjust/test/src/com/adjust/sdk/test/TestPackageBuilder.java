@@ -0,0 +1,299 @@
+package com.adjust.sdk.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.adjust.sdk.ActivityPackage;
+import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.FormEncoder;
+import com.adjust.sdk.GeneralAttributes;
+import com.adjust.sdk.PackageBuilder;
+import com.adjust.sdk.PackageParameter;
+import com.adjust.sdk.Util;
+
+public class TestPackageBuilder extends ActivityInstrumentationTestCase2<UnitTestActivity> {
+
+    private static final int PACKAGES = 2000;
+
+    protected MockLogger mockLogger;
+    protected Context context;
+
+    public TestPackageBuilder() {
+        super(UnitTestActivity.class);
+    }
+
+    public TestPackageBuilder(Class<UnitTestActivity> activityClass) {
+        super(activityClass);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mockLogger = new MockLogger();
+        AdjustFactory.setLogger(mockLogger);
+
+        context = getActivity().getApplicationContext();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        AdjustFactory.setLogger(null);
+    }
+
+    public void testEventParameters() {
+        PackageBuilder builder = getEventBuilder();
+        ActivityPackage eventPackage = builder.buildEventPackage();
+
+        // the numbers are kept as they are
+        assertEquals(3, eventPackage.getNumber(PackageParameter.SESSION_COUNT));
+        assertEquals(12345, eventPackage.getNumber(PackageParameter.TIME_SPENT));
+        assertEquals(-1, eventPackage.getNumber(PackageParameter.LAST_INTERVAL));
+
+        // and only formatted when the parameters are requested
+        Map<String, String> parameters = eventPackage.getParameters();
+        assertEquals("abc123", parameters.get("event_token"));
+        assertEquals("3", parameters.get("session_count"));
+        assertEquals("12", parameters.get("time_spent"));
+        assertEquals(Util.dateFormat(1400000000000L), parameters.get("created_at"));
+        assertEquals("sandbox", parameters.get("environment"));
+
+        // missing and empty values are not sent
+        assertFalse(parameters.containsKey("last_interval"));
+        assertFalse(parameters.containsKey("fb_id"));
+        assertFalse(parameters.containsKey("params"));
+    }
+
+    public void testRevenueParameters() {
+        PackageBuilder builder = getEventBuilder();
+        builder.setAmountInCents(12.34);
+        ActivityPackage revenuePackage = builder.buildRevenuePackage();
+
+        assertEquals(123, revenuePackage.getNumber(PackageParameter.AMOUNT));
+        assertEquals("123", revenuePackage.getParameters().get("amount"));
+    }
+
+    public void testGeneralAttributes() {
+        GeneralAttributes generalAttributes = new GeneralAttributes("qwerty123456", "macSha1", "macMd5",
+                "androidId", "", "userAgent", "android3.3.0", "sandbox", "defaultTracker", "gpsAdid");
+
+        PackageBuilder builder = new PackageBuilder(context);
+        builder.setGeneralAttributes(generalAttributes);
+        builder.setEventToken("abc123");
+        ActivityPackage sessionPackage = builder.buildSessionPackage();
+        ActivityPackage eventPackage = builder.buildEventPackage();
+
+        // both packages reference the same snapshot
+        assertSame(generalAttributes, sessionPackage.getGeneralAttributes());
+        assertSame(generalAttributes, eventPackage.getGeneralAttributes());
+        assertEquals("userAgent", eventPackage.getUserAgent());
+        assertEquals("android3.3.0", eventPackage.getClientSdk());
+
+        Map<String, String> parameters = eventPackage.getParameters();
+        assertEquals("qwerty123456", parameters.get("app_token"));
+        assertEquals("gpsAdid", parameters.get("gps_adid"));
+        assertFalse(parameters.containsKey("fb_id"));
+
+        // the default tracker is only sent with sessions
+        assertFalse(parameters.containsKey("default_tracker"));
+        assertEquals("defaultTracker", sessionPackage.getParameters().get("default_tracker"));
+
+        // a new advertising id creates a new snapshot, the same one keeps it
+        assertSame(generalAttributes, generalAttributes.withGpsAdid("gpsAdid"));
+        GeneralAttributes changed = generalAttributes.withGpsAdid("newGpsAdid");
+        assertNotSame(generalAttributes, changed);
+        assertEquals("newGpsAdid", changed.getGpsAdid());
+        assertEquals("sandbox", changed.getString(PackageParameter.ENVIRONMENT));
+    }
+
+    public void testBody() throws Exception {
+        PackageBuilder builder = getEventBuilder();
+        builder.setGeneralAttributes(new GeneralAttributes("qwerty123456", "macSha1", "macMd5",
+                "androidId", "", "user agent", "android3.3.0", "sandbox", null, null));
+        ActivityPackage eventPackage = builder.buildEventPackage();
+
+        byte[] body = eventPackage.getBody();
+        String bodyString = new String(body, "UTF-8");
+
+        // the parameters are sorted by key and form encoded
+        String[] pairs = bodyString.split("&");
+        assertEquals(eventPackage.getParameters().size(), pairs.length);
+        for (int i = 1; i < pairs.length; i++) {
+            assertTrue(bodyString, pairs[i - 1].compareTo(pairs[i]) < 0);
+        }
+        assertTrue(bodyString, bodyString.startsWith("android_id=androidId&android_uuid="));
+        assertTrue(bodyString, bodyString.contains(
+                "&created_at=" + URLEncoder.encode(Util.dateFormat(1400000000000L), "UTF-8") + "&"));
+        assertFalse(bodyString, bodyString.contains("sent_at"));
+
+        // the body is encoded only once
+        assertSame(body, eventPackage.getBody());
+    }
+
+    public void testFormEncoder() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longValue.append("caf\u00e9 \u20ac\ud83d\ude00");
+        }
+        String[] values = { "", "plain-value_1.0*", "a b+c&d=e%f/g:h", "\u00fc\u00f1\u00ee\u00e7\u00f8d\u00e9",
+                "\u65e5\u672c\u8a9e", "\ud83d\ude00", "lone \ud83d surrogate", longValue.toString() };
+
+        // same output as URLEncoder, also across flushes of the scratch buffer
+        FormEncoder encoder = new FormEncoder();
+        for (String value : values) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            encoder.begin(output, true);
+            encoder.write("key", value);
+            encoder.end();
+
+            String expected = "&key=" + URLEncoder.encode(value, "UTF-8");
+            assertEquals(expected, output.toString("UTF-8"));
+        }
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("first key", "1");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.begin(output, false);
+        encoder.writeAll(parameters);
+        encoder.write("second", "2");
+        encoder.end();
+        assertEquals("first+key=1&second=2", output.toString("UTF-8"));
+
+        // numbers are written as digits, an appended parameter follows the content
+        encoder.begin();
+        encoder.write("zero", 0);
+        encoder.write("large", Long.MAX_VALUE);
+        byte[] form = encoder.finish();
+        assertEquals("zero=0&large=" + Long.MAX_VALUE, new String(form, "UTF-8"));
+        assertEquals("zero=0&large=" + Long.MAX_VALUE + "&sent_at=a%3Ab",
+                new String(encoder.append(form, "sent_at", "a:b"), "UTF-8"));
+        assertEquals("sent_at=a%3Ab", new String(encoder.append(new byte[0], "sent_at", "a:b"), "UTF-8"));
+
+        // the body of a typed package is written in the order of the keys
+        ActivityPackage activityPackage = getEventBuilder().buildEventPackage();
+        StringBuilder expected = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(activityPackage.getParameters()).entrySet()) {
+            if (expected.length() > 0) {
+                expected.append('&');
+            }
+            expected.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+            expected.append('=');
+            expected.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+        assertEquals(expected.toString(), new String(activityPackage.getBody(encoder), "UTF-8"));
+    }
+
+    public void testEncodedPackage() throws Exception {
+        ActivityPackage eventPackage = getEventBuilder().buildEventPackage();
+        Map<String, String> parameters = eventPackage.getParameters();
+        byte[] body = eventPackage.getBody();
+
+        // the typed values are released, the parameters are read back from the body
+        assertNull(eventPackage.getGeneralAttributes());
+        assertEquals(parameters, eventPackage.getParameters());
+        assertEquals(parameters.get("created_at"), eventPackage.getFormatted(PackageParameter.CREATED_AT));
+
+        // only the body is persisted
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+        objectOutput.writeObject(eventPackage);
+        objectOutput.close();
+        ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ActivityPackage readPackage = (ActivityPackage) objectInput.readObject();
+
+        assertTrue(Arrays.equals(body, readPackage.getBody()));
+        assertEquals(parameters, readPackage.getParameters());
+    }
+
+    public void testBuildEventPackage() {
+        PackageBuilder builder = getEventBuilder();
+
+        // warm up both paths
+        for (int i = 0; i < PACKAGES; i++) {
+            builder.buildEventPackage();
+            buildLegacyParameters();
+        }
+
+        Debug.startAllocCounting();
+
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < PACKAGES; i++) {
+            buildLegacyParameters();
+        }
+        long legacyTime = System.nanoTime() - start;
+        int legacyBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        start = System.nanoTime();
+        for (int i = 0; i < PACKAGES; i++) {
+            builder.buildEventPackage();
+        }
+        long typedTime = System.nanoTime() - start;
+        int typedBytes = Debug.getThreadAllocSize();
+
+        Debug.stopAllocCounting();
+
+        mockLogger.test(String.format(Locale.US, "buildEventPackage: map %d ns %d bytes, typed %d ns %d bytes per package",
+                legacyTime / PACKAGES, legacyBytes / PACKAGES, typedTime / PACKAGES, typedBytes / PACKAGES));
+
+        // the typed package allocates less, even though it builds the whole package
+        assertTrue(mockLogger.toString(), typedBytes < legacyBytes);
+    }
+
+    private PackageBuilder getEventBuilder() {
+        PackageBuilder builder = new PackageBuilder(context);
+        builder.setAppToken("qwerty123456");
+        builder.setMacSha1("0123456789abcdef0123456789abcdef01234567");
+        builder.setMacShortMd5("0123456789abcdef0123456789abcdef");
+        builder.setAndroidId("0123456789abcdef");
+        builder.setUuid("01234567-89ab-cdef-0123-456789abcdef");
+        builder.setEnvironment("sandbox");
+        builder.setCreatedAt(1400000000000L);
+        builder.setSessionCount(3);
+        builder.setSubsessionCount(2);
+        builder.setSessionLength(65000);
+        builder.setTimeSpent(12345);
+        builder.setLastInterval(-1);
+        builder.setEventCount(7);
+        builder.setEventToken("abc123");
+        return builder;
+    }
+
+    // the parameter map the builder used to create for every event package
+    private Map<String, String> buildLegacyParameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("created_at", Util.dateFormat(1400000000000L));
+        parameters.put("app_token", "qwerty123456");
+        parameters.put("mac_sha1", "0123456789abcdef0123456789abcdef01234567");
+        parameters.put("mac_md5", "0123456789abcdef0123456789abcdef");
+        parameters.put("android_id", "0123456789abcdef");
+        parameters.put("android_uuid", "01234567-89ab-cdef-0123-456789abcdef");
+        parameters.put("environment", "sandbox");
+        String gpsAdid = Util.getGpsAdid(context);
+        if (null != gpsAdid) {
+            parameters.put("gps_adid", gpsAdid);
+        }
+        parameters.put("session_count", Long.toString(3));
+        parameters.put("subsession_count", Long.toString(2));
+        parameters.put("session_length", Long.toString((65000 + 500) / 1000));
+        parameters.put("time_spent", Long.toString((12345 + 500) / 1000));
+        parameters.put("event_count", Long.toString(7));
+        parameters.put("event_token", "abc123");
+        return parameters;
+    }
+}
@@ -1,11 +1,14 @@
 package com.adjust.sdk.test;
 
+import java.util.concurrent.CountDownLatch;
+
 import android.content.Context;
 import android.os.SystemClock;
 import android.test.ActivityInstrumentationTestCase2;
 
 import com.adjust.sdk.ActivityPackage;
 import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.Constants;
 import com.adjust.sdk.Logger.LogLevel;
 import com.adjust.sdk.PackageBuilder;
 import com.adjust.sdk.PackageHandler;
@@ -13,8 +16,12 @@ import com.adjust.sdk.PackageHandler;
 public class TestPackageHandler extends
         ActivityInstrumentationTestCase2<UnitTestActivity> {
 
+    // long enough that the random backoff does not expire during a test
+    private static final long ONE_HOUR = 60 * Constants.ONE_MINUTE;
+
     protected MockLogger mockLogger;
     protected MockRequestHandler mockRequestHandler;
+    protected MockConnectivityMonitor mockConnectivityMonitor;
     protected Context context;
 
     public TestPackageHandler() {
@@ -31,9 +38,11 @@ public class TestPackageHandler extends
 
         mockLogger = new MockLogger();
         mockRequestHandler = new MockRequestHandler(mockLogger);
+        mockConnectivityMonitor = new MockConnectivityMonitor(mockLogger);
 
         AdjustFactory.setLogger(mockLogger);
         AdjustFactory.setRequestHandler(mockRequestHandler);
+        AdjustFactory.setConnectivityMonitor(mockConnectivityMonitor);
 
         context = getActivity().getApplicationContext();
     }
@@ -43,6 +52,10 @@ public class TestPackageHandler extends
         super.tearDown();
 
         AdjustFactory.setRequestHandler(null);
+        AdjustFactory.setConnectivityMonitor(null);
+        AdjustFactory.setBatchMaxPackages(-1);
+        AdjustFactory.setRetryBaseInterval(-1);
+        AdjustFactory.setRetryMaxInterval(-1);
         AdjustFactory.setLogger(null);
     }
 
@@ -238,4 +251,504 @@ public class TestPackageHandler extends
         assertTrue(mockLogger.toString(),
             mockLogger.containsMessage(LogLevel.DEBUG, "Package handler read 3 packages"));
     }
+
+    public void testFlush() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        SystemClock.sleep(1000);
+
+        // the app went to the background with two packages in the queue
+        packageHandler.pauseSending();
+
+        PackageBuilder builder = new PackageBuilder(context);
+        ActivityPackage sessionPackage = builder.buildSessionPackage();
+        packageHandler.addPackage(sessionPackage);
+        packageHandler.addPackage(sessionPackage);
+        SystemClock.sleep(1000);
+
+        mockRequestHandler.setPackageHandler(packageHandler);
+
+        // flush with a deadline that is not reached
+        packageHandler.flushAndPauseSending(5000);
+        SystemClock.sleep(1000);
+
+        // the sending thread was raised and both packages were sent
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler setHighPriority true"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // the empty queue ended the flush
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Finished flushing, package handler is paused"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler setHighPriority false"));
+
+        // new packages are not sent after the flush
+        packageHandler.addPackage(sessionPackage);
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler is paused"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+    }
+
+    public void testFlushDeadline() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        SystemClock.sleep(1000);
+
+        packageHandler.pauseSending();
+
+        PackageBuilder builder = new PackageBuilder(context);
+        ActivityPackage sessionPackage = builder.buildSessionPackage();
+        packageHandler.addPackage(sessionPackage);
+        SystemClock.sleep(1000);
+
+        // the package can not be sent, so the queue stays full
+        mockRequestHandler.setPackageHandler(packageHandler);
+        mockRequestHandler.setErrorNextSend(true);
+
+        packageHandler.flushAndPauseSending(1000);
+        SystemClock.sleep(2000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // the deadline ended the flush
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Flush deadline expired"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Finished flushing, package handler is paused"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler setHighPriority false"));
+    }
+
+    public void testTeardown() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        ActivityPackage sessionPackage = builder.buildSessionPackage();
+        packageHandler.addPackage(sessionPackage);
+        CountDownLatch released = new CountDownLatch(1);
+        packageHandler.teardown(released);
+        SystemClock.sleep(1000);
+
+        // the package was written before the handler was released
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 1 packages"));
+        assertEquals(0, released.getCount());
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler teardown"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler released"));
+
+        // the released handler does not take new packages
+        packageHandler.addPackage(sessionPackage);
+        SystemClock.sleep(1000);
+
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Added package"));
+
+        // a new package handler reads the queue from disk
+        packageHandler = new PackageHandler(null, context, false);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler read 1 packages"));
+    }
+
+    public void testBatch() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+        AdjustFactory.setBatchMaxPackages(2);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.setBatchUpload(true);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        packageHandler.addPackage(builder.buildSessionPackage());
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        mockRequestHandler.setPackageHandler(packageHandler);
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        // the first two packages are sent together and acknowledged
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendBatch 2"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler removed 2 of 2 batched packages"));
+
+        // the last one is sent on its own
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 0 packages"));
+    }
+
+    public void testBatchRetry() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        AdjustFactory.setRetryBaseInterval(ONE_HOUR);
+        AdjustFactory.setRetryMaxInterval(ONE_HOUR);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.setBatchUpload(true);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        // none of the packages gets acknowledged
+        mockRequestHandler.setPackageHandler(packageHandler);
+        mockRequestHandler.setErrorNextSend(true);
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendBatch 2"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("Will retry later."));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler removed 0 of 2 batched packages"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 2 packages"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 2 in"));
+
+        // the batch is not sent again right away
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendBatch"));
+    }
+
+    public void testBatchHeaders() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.setBatchUpload(true);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        // the last package was queued by a newer sdk version
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        packageHandler.addPackage(builder.buildSessionPackage());
+        builder.setClientSdk("android3.4.0");
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        mockRequestHandler.setPackageHandler(packageHandler);
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        // the batch ends where the headers change
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendBatch 2"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 0 packages"));
+    }
+
+    public void testSendWindow() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.setSendWindow(3);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        builder.setEventToken("abc123");
+        ActivityPackage firstSession = builder.buildSessionPackage();
+        ActivityPackage firstEvent = builder.buildEventPackage();
+        ActivityPackage secondEvent = builder.buildEventPackage();
+        ActivityPackage thirdEvent = builder.buildEventPackage();
+        ActivityPackage secondSession = builder.buildSessionPackage();
+        packageHandler.addPackage(firstSession);
+        packageHandler.addPackage(firstEvent);
+        packageHandler.addPackage(secondEvent);
+        packageHandler.addPackage(thirdEvent);
+        packageHandler.addPackage(secondSession);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 5 packages"));
+
+        // the mock request handler does not respond, the test acknowledges the packages
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        // the session is sent alone
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // then the events fill the window
+        packageHandler.sendNextPackage(firstSession);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 4 packages"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // a later package is only removed together with the earlier ones
+        packageHandler.sendNextPackage(secondEvent);
+        SystemClock.sleep(1000);
+
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote"));
+
+        packageHandler.sendNextPackage(firstEvent);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 2 packages"));
+
+        // the second session waits for the last event
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        packageHandler.sendNextPackage(thirdEvent);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 1 packages"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+    }
+
+    public void testSendWindowRewind() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+
+        AdjustFactory.setRetryBaseInterval(ONE_HOUR);
+        AdjustFactory.setRetryMaxInterval(ONE_HOUR);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.setSendWindow(2);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        builder.setEventToken("abc123");
+        ActivityPackage firstEvent = builder.buildEventPackage();
+        ActivityPackage secondEvent = builder.buildEventPackage();
+        packageHandler.addPackage(firstEvent);
+        packageHandler.addPackage(secondEvent);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 2 packages"));
+
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // the first package failed, the window waits for the second response
+        packageHandler.closeFirstPackage(firstEvent);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Rewinding 2 packages in flight"));
+
+        // the delivered package is removed, the failed one is kept for later
+        packageHandler.sendNextPackage(secondEvent);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 1 packages"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // and only sent again after the backoff
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Package handler is waiting to retry"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+    }
+
+    public void testRetryBackoff() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+        AdjustFactory.setRetryBaseInterval(100);
+        AdjustFactory.setRetryMaxInterval(100);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        // every attempt fails
+        mockRequestHandler.setPackageHandler(packageHandler);
+        mockRequestHandler.setErrorNextSend(true);
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        // the package is retried without a new trigger once the backoff expired
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 2 in"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 3 in"));
+        packageHandler.teardown(null);
+    }
+
+    public void testRetryPersisted() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+        AdjustFactory.setRetryBaseInterval(ONE_HOUR);
+        AdjustFactory.setRetryMaxInterval(ONE_HOUR);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        packageHandler.pauseSending();
+        SystemClock.sleep(1000);
+
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        mockRequestHandler.setPackageHandler(packageHandler);
+        mockRequestHandler.setErrorNextSend(true);
+        packageHandler.resumeSending();
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 2 in"));
+
+        // triggers during the backoff don't send the package
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Package handler is waiting to retry"));
+        packageHandler.teardown(null);
+        SystemClock.sleep(1000);
+
+        // a new package handler continues with the attempt count of the package
+        packageHandler = new PackageHandler(null, context, false);
+        mockRequestHandler.setPackageHandler(packageHandler);
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler read 1 packages"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 3 in"));
+        packageHandler.teardown(null);
+    }
+
+    public void testConnectivity() {
+        // delete previously created Package queue file to make a new queue
+        mockLogger.test("Was AdjustPackageQueue deleted? " + PackageHandler.deletePackageQueue(context));
+        AdjustFactory.setRetryBaseInterval(ONE_HOUR);
+        AdjustFactory.setRetryMaxInterval(ONE_HOUR);
+
+        // TODO: create and inject activityHandler
+        PackageHandler packageHandler = new PackageHandler(null, context, false);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ConnectivityMonitor start"));
+
+        PackageBuilder builder = new PackageBuilder(context);
+        packageHandler.addPackage(builder.buildSessionPackage());
+        SystemClock.sleep(1000);
+
+        // the first attempt fails and starts a long backoff
+        mockRequestHandler.setPackageHandler(packageHandler);
+        mockRequestHandler.setErrorNextSend(true);
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Retry attempt 2 in"));
+
+        // nothing is sent while offline
+        mockConnectivityMonitor.setConnected(false);
+        packageHandler.sendFirstPackage();
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Connectivity lost, package handler stops sending"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler is waiting for connectivity"));
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+
+        // the queue is sent right away when the connection returns, despite the backoff
+        mockRequestHandler.setErrorNextSend(false);
+        mockConnectivityMonitor.setConnected(true);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Connectivity restored, package handler resumes sending"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("RequestHandler sendPackage"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.DEBUG, "Package handler wrote 0 packages"));
+
+        packageHandler.teardown(null);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("ConnectivityMonitor stop"));
+    }
 }
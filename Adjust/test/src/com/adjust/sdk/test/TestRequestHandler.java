@@ -1,17 +1,37 @@
 package com.adjust.sdk.test;
 
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 import android.content.Context;
 import android.os.SystemClock;
 import android.test.ActivityInstrumentationTestCase2;
 
 import com.adjust.sdk.ActivityPackage;
 import com.adjust.sdk.AdjustFactory;
+import com.adjust.sdk.Constants;
+import com.adjust.sdk.HttpClientTransport;
+import com.adjust.sdk.IHttpTransport;
+import com.adjust.sdk.LatencyHistogram;
 import com.adjust.sdk.Logger.LogLevel;
+import com.adjust.sdk.NioRequestHandler;
 import com.adjust.sdk.PackageBuilder;
+import com.adjust.sdk.RequestCompressor;
 import com.adjust.sdk.RequestHandler;
+import com.adjust.sdk.ResponseData;
+import com.adjust.sdk.ResponseParser;
+import com.adjust.sdk.UrlConnectionTransport;
 
 public class TestRequestHandler extends ActivityInstrumentationTestCase2<UnitTestActivity> {
 
+    private static final int REQUESTS = 100;
+
     protected MockLogger mockLogger;
     protected MockPackageHandler mockPackageHandler;
     protected MockHttpClient mockHttpClient;
@@ -58,6 +78,11 @@ public class TestRequestHandler extends ActivityInstrumentationTestCase2<UnitTes
         super.tearDown();
 
         AdjustFactory.setHttpClient(null);
+        AdjustFactory.setNonBlockingRequests(false);
+        AdjustFactory.setBaseUrl(null);
+        AdjustFactory.setHttpTransport(null);
+        AdjustFactory.setRequestTimeoutMin(-1);
+        AdjustFactory.setRequestTimeoutMax(-1);
         AdjustFactory.setLogger(null);
     }
 
@@ -101,4 +126,425 @@ public class TestRequestHandler extends ActivityInstrumentationTestCase2<UnitTes
             mockLogger.containsTestMessage("PackageHandler closeFirstPackage"));
     }
 
+    public void testSendBatch() throws Exception {
+        // use a real http client against a local server
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        SystemClock.sleep(1000);
+
+        // the second package has to be retried, the third one was rejected
+        mockHttpServer.setResponse(200,
+                "[{\"status\":200,\"tracker_token\":\"abc123\"},{\"status\":503},{\"status\":400,\"error\":\"invalid\"}]");
+
+        Context context = getActivity().getApplicationContext();
+        PackageBuilder builder = new PackageBuilder(context);
+        List<ActivityPackage> packages = new ArrayList<ActivityPackage>();
+        packages.add(builder.buildSessionPackage());
+        packages.add(builder.buildSessionPackage());
+        packages.add(builder.buildSessionPackage());
+
+        requestHandler.sendBatch(packages);
+        SystemClock.sleep(2000);
+        mockHttpServer.close();
+
+        // one request with one line per package
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("HttpServer POST /batch"));
+        List<String> requestBodies = mockHttpServer.getRequestBodies();
+        assertEquals(1, requestBodies.size());
+        String[] lines = requestBodies.get(0).split("\n");
+        assertEquals(3, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("/startup "));
+            assertTrue(line, line.contains("&sent_at="));
+        }
+
+        // each package gets its own result
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Tracked session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (Status code 503 (null)) Will retry later."));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (invalid)"));
+
+        // only the tracked and the rejected packages are acknowledged
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler finishedBatch 2"));
+    }
+
+    public void testSendBatchRejected() throws Exception {
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        SystemClock.sleep(1000);
+
+        List<ActivityPackage> packages = new ArrayList<ActivityPackage>();
+        packages.add(sessionPackage);
+        packages.add(sessionPackage);
+
+        // a rejected batch is dropped instead of being retried
+        mockHttpServer.setResponse(400, "{\"error\":\"invalid\"}");
+        requestHandler.sendBatch(packages);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to send batch of 2 packages. (Status code 400 (invalid))"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler finishedBatch 2"));
+
+        // an accepted batch with an unreadable response counts as sent
+        mockHttpServer.setResponse(200, "not json");
+        requestHandler.sendBatch(packages);
+        SystemClock.sleep(1000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (Failed to parse json response: not json)"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler finishedBatch 2"));
+
+        // a server error keeps the packages for a later attempt
+        mockHttpServer.setResponse(503, "{}");
+        requestHandler.sendBatch(packages);
+        SystemClock.sleep(1000);
+        mockHttpServer.close();
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to send batch of 2 packages. (Status code 503 (null)) Will retry later."));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler finishedBatch 0"));
+    }
+
+    public void testResponseParser() throws Exception {
+        ResponseData responseData = ResponseParser.parse(
+                "{\"other\":{\"a\":[1,{\"b\":null}]},\"error\":\"\\\"bad\\\" \\u00e9\",\"tracker_token\":\"abc123\",\"tracker_name\":\"N\u00e4me\"}"
+                .getBytes("UTF-8"));
+        assertEquals("\"bad\" \u00e9", responseData.getError());
+        assertEquals("abc123", responseData.getTrackerToken());
+        assertEquals("N\u00e4me", responseData.getTrackerName());
+
+        // anything else is reported with the start of the body
+        responseData = ResponseParser.parse("<html>proxy error</html>".getBytes("UTF-8"));
+        assertEquals("Failed to parse json response: <html>proxy error</html>", responseData.getError());
+        assertNull(responseData.getTrackerToken());
+
+        responseData = ResponseParser.parse("{\"error\":\"truncated".getBytes("UTF-8"));
+        assertEquals("Failed to parse json response: {\"error\":\"truncated", responseData.getError());
+    }
+
+    public void testLargeResponse() throws Exception {
+        // a proxy answers with a page much larger than any response
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        SystemClock.sleep(1000);
+
+        StringBuilder page = new StringBuilder("<html>");
+        while (page.length() < 4 * Constants.MAX_RESPONSE_BYTES) {
+            page.append("<p>bad gateway</p>");
+        }
+        page.append("</html>");
+        mockHttpServer.setResponse(502, page.toString());
+
+        requestHandler.sendPackage(sessionPackage);
+        SystemClock.sleep(2000);
+        mockHttpServer.close();
+
+        // only the start of the page is read
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.WARN,
+                String.format(Locale.US, "Response was cut off after %d bytes", Constants.MAX_RESPONSE_BYTES)));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR,
+                "Failed to track session. (Failed to parse json response: <html><p>bad gateway</p>"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendNextPackage"));
+    }
+
+    public void testTransportBenchmark() throws Exception {
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+
+        runBenchmark("HttpClient", new HttpClientTransport(Constants.ONE_MINUTE, Constants.ONE_MINUTE), mockHttpServer);
+        int connections = runBenchmark("HttpURLConnection",
+                new UrlConnectionTransport(Constants.ONE_MINUTE, Constants.ONE_MINUTE), mockHttpServer);
+        mockHttpServer.close();
+
+        // all requests reuse the first connection
+        assertEquals(mockLogger.toString(), 1, connections);
+    }
+
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+
+        // 99 fast requests and a slow one
+        for (int i = 0; i < 99; i++) {
+            histogram.add(100);
+        }
+        histogram.add(5000);
+        assertEquals(100, histogram.getCount());
+
+        // the bound of a bucket is at most a quarter above the latency
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 100 && p50 <= 125);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(String.valueOf(p99), p99 >= 100 && p99 <= 125);
+        long p100 = histogram.getPercentile(1.0);
+        assertTrue(String.valueOf(p100), p100 >= 5000 && p100 <= 6250);
+
+        // old samples leave the window
+        for (int i = 0; i < 1000; i++) {
+            histogram.add(20);
+        }
+        assertEquals(256, histogram.getCount());
+        long max = histogram.getPercentile(1.0);
+        assertTrue(String.valueOf(max), max >= 20 && max <= 25);
+    }
+
+    public void testAdaptiveTimeout() throws Exception {
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        AdjustFactory.setRequestTimeoutMin(500);
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        SystemClock.sleep(1000);
+
+        // fast responses shrink the timeout to the minimum
+        for (int i = 0; i < 30; i++) {
+            requestHandler.sendPackage(sessionPackage);
+        }
+        SystemClock.sleep(2000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.VERBOSE, "Request timeout 500 ms (p99 latency"));
+
+        // a stalled request now fails fast instead of blocking the queue for a minute
+        mockHttpServer.setResponseDelay(3000);
+        requestHandler.sendPackage(sessionPackage);
+        SystemClock.sleep(2000);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (Request timed out"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler closeFirstPackage"));
+
+        requestHandler.teardown();
+        mockHttpServer.close();
+    }
+
+    public void testNonBlockingBenchmark() throws Exception {
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        NioRequestHandler requestHandler = new NioRequestHandler(mockPackageHandler);
+
+        // all packages are in flight at the same time on the selector thread
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            requestHandler.sendPackage(sessionPackage);
+        }
+        for (int wait = 0; wait < 3000 && mockHttpServer.getRequestBodies().size() < REQUESTS; wait++) {
+            SystemClock.sleep(10);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        int requests = mockHttpServer.getRequestBodies().size();
+        SystemClock.sleep(1000);
+        requestHandler.teardown();
+        mockHttpServer.close();
+
+        mockLogger.test(String.format(Locale.US, "Selector: %d requests in %d ms, %d per second, %d connections",
+                requests, elapsed / 1000000, requests * 1000000000L / elapsed, mockHttpServer.getConnectionCount()));
+        assertEquals(mockLogger.toString(), REQUESTS, requests);
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("HttpServer POST /startup"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Tracked session"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendNextPackage"));
+        assertTrue(mockHttpServer.getRequestBodies().get(0), mockHttpServer.getRequestBodies().get(0).contains("&sent_at="));
+    }
+
+    public void testNonBlockingTimeout() throws Exception {
+        // accepts connections but never answers
+        ServerSocket silentServer = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        AdjustFactory.setBaseUrl("http://127.0.0.1:" + silentServer.getLocalPort());
+        NioRequestHandler requestHandler = new NioRequestHandler(mockPackageHandler, 1000, 500);
+
+        requestHandler.sendPackage(sessionPackage);
+        SystemClock.sleep(2000);
+        requestHandler.teardown();
+        silentServer.close();
+
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR,
+                "Failed to track session. (Request timed out: java.net.SocketTimeoutException: Read timed out)"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler closeFirstPackage"));
+    }
+
+    public void testNonBlockingPermanentError() throws Exception {
+        // the default base url is https, which the selector loop cannot send to
+        try {
+            AdjustFactory.setNonBlockingRequests(true);
+            fail("non-blocking requests accepted an https base url");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Non-blocking requests need an http base url"));
+        }
+        try {
+            new NioRequestHandler(mockPackageHandler);
+            fail("request handler accepted an https base url");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported base url"));
+        }
+
+        // falls back to the blocking handler if the base url changed afterwards
+        AdjustFactory.setBaseUrl("http://127.0.0.1:1");
+        AdjustFactory.setNonBlockingRequests(true);
+        AdjustFactory.setBaseUrl(null);
+        assertTrue(AdjustFactory.getRequestHandler(mockPackageHandler) instanceof RequestHandler);
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Non-blocking requests need an http base url"));
+
+        // requests that cannot be built are dropped instead of retried
+        AdjustFactory.setBaseUrl("http://127.0.0.1:1");
+        NioRequestHandler requestHandler = new NioRequestHandler(mockPackageHandler);
+
+        AdjustFactory.setBaseUrl("https://127.0.0.1:1");
+        requestHandler.sendPackage(sessionPackage);
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR,
+                "Failed to track session. (Request failed: java.lang.IllegalArgumentException: Unsupported protocol https)"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendNextPackage"));
+
+        AdjustFactory.setBaseUrl("htp://127.0.0.1:1");
+        requestHandler.sendPackage(sessionPackage);
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (Invalid url: java.net.MalformedURLException"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler sendNextPackage"));
+
+        // a dropped package of a batch is acked, so that it leaves the queue
+        List<ActivityPackage> batch = new ArrayList<ActivityPackage>();
+        batch.add(sessionPackage);
+        requestHandler.sendBatch(batch);
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.ERROR, "Failed to track session. (Invalid url"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler finishedBatch 1"));
+
+        requestHandler.teardown();
+        assertFalse(mockLogger.toString(),
+            mockLogger.containsTestMessage("PackageHandler closeFirstPackage"));
+    }
+
+    // send the session package repeatedly and return the number of new connections
+    private int runBenchmark(String name, IHttpTransport httpTransport, MockHttpServer mockHttpServer) {
+        AdjustFactory.setHttpTransport(httpTransport);
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        SystemClock.sleep(1000);
+
+        int connections = mockHttpServer.getConnectionCount();
+        int requests = mockHttpServer.getRequestBodies().size();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < REQUESTS; i++) {
+            requestHandler.sendPackage(sessionPackage);
+        }
+        for (int wait = 0; wait < 3000 && mockHttpServer.getRequestBodies().size() < requests + REQUESTS; wait++) {
+            SystemClock.sleep(10);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        connections = mockHttpServer.getConnectionCount() - connections;
+        requests = mockHttpServer.getRequestBodies().size() - requests;
+        requestHandler.teardown();
+
+        mockLogger.test(String.format(Locale.US, "%s: %d requests in %d ms, %d per second, %d connections",
+                name, requests, elapsed / 1000000, requests * 1000000000L / elapsed, connections));
+        assertEquals(mockLogger.toString(), REQUESTS, requests);
+        return connections;
+    }
+
+    public void testCompression() throws Exception {
+        MockHttpServer mockHttpServer = new MockHttpServer(mockLogger);
+        AdjustFactory.setHttpClient(null);
+        AdjustFactory.setBaseUrl(mockHttpServer.getUrl());
+        RequestHandler requestHandler = new RequestHandler(mockPackageHandler);
+        requestHandler.setCompression(true);
+        SystemClock.sleep(1000);
+
+        requestHandler.sendPackage(sessionPackage);
+        SystemClock.sleep(1000);
+
+        // the server gets the deflated body
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsTestMessage("HttpServer POST /startup"));
+        assertTrue(mockLogger.toString(),
+            mockLogger.containsMessage(LogLevel.INFO, "Tracked session"));
+        assertEquals("deflate", mockHttpServer.getContentEncodings().get(0));
+
+        // and needs the dictionary to inflate it
+        byte[] compressed = mockHttpServer.getRequestContents().get(0);
+        String body = new String(inflate(compressed), "UTF-8");
+        byte[] plain = sessionPackage.getBody();
+        assertTrue(body, body.startsWith(new String(plain, "UTF-8") + "&sent_at="));
+
+        // short bodies are sent as they are
+        AdjustFactory.setCompressionThreshold(Integer.MAX_VALUE);
+        requestHandler.sendPackage(sessionPackage);
+        SystemClock.sleep(1000);
+        AdjustFactory.setCompressionThreshold(-1);
+        mockHttpServer.close();
+
+        assertNull(mockHttpServer.getContentEncodings().get(1));
+        assertTrue(mockHttpServer.getRequestBodies().get(1).startsWith(new String(plain, "UTF-8")));
+
+        // bytes saved and cost compared to deflate without the dictionary
+        RequestCompressor compressor = new RequestCompressor();
+        Deflater deflater = new Deflater();
+        byte[] buffer = new byte[4096];
+        deflater.setInput(plain);
+        deflater.finish();
+        int withoutDictionary = deflater.deflate(buffer);
+        int withDictionary = compressor.compress(plain).length;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            compressor.compress(plain);
+        }
+        long elapsed = System.nanoTime() - start;
+        compressor.end();
+        deflater.end();
+
+        mockLogger.test(String.format(Locale.US, "compression: %d bytes, %d without dictionary, %d with dictionary, %d us per body",
+                plain.length, withoutDictionary, withDictionary, elapsed / REQUESTS / 1000));
+        assertTrue(mockLogger.toString(), withDictionary < withoutDictionary);
+        assertTrue(mockLogger.toString(), withDictionary < plain.length / 2);
+    }
+
+    private byte[] inflate(byte[] compressed) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (inflater.needsDictionary()) {
+                inflater.setDictionary(RequestCompressor.getDictionary());
+            }
+            out.write(buffer, 0, count);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
 }